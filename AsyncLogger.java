@@ -0,0 +1,304 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Console logging off the request path. Handler threads claim a preallocated slot in a bounded
+// ring (lock-free, one CAS) and store the message template and its arguments; one writer thread
+// formats "{}" placeholders into a reused buffer and writes whole lines to stdout. Numbers are
+// passed as longs so nothing is boxed, and a disabled or sampled-out message returns before
+// touching the ring. When the ring is full the message is dropped and counted, never waited for.
+//
+// Levels, lowest first: DEBUG, REQUEST (one line per request, subject to -logSample), INFO,
+// WARN, ERROR. "-log <level>" sets the threshold, "-log off" silences everything.
+public class AsyncLogger {
+    public static final Level DEBUG = new Level(0, true);
+    public static final Level REQUEST = new Level(1, true);
+    public static final Level INFO = new Level(2, false);
+    public static final Level WARN = new Level(3, false);
+    public static final Level ERROR = new Level(4, false);
+    private static final String[] LEVEL_NAMES = {"debug", "request", "info", "warn", "error", "off"};
+
+    static final int CAPACITY = 8192;
+    static final int MAX_ARGS = 4;
+    static final int LINE_BUFFER = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static volatile int threshold = 1;
+    // REQUEST and DEBUG messages are kept one in sampleEvery
+    private static volatile int sampleEvery = 1;
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+    private static final int mask = CAPACITY - 1;
+    private static final AtomicLong tail = new AtomicLong(0);
+    // Messages before this position have been written to stdout
+    private static volatile long flushed = 0;
+    private static volatile boolean writerWaiting = false;
+    private static final LongAdder written = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder sampledOut = new LongAdder();
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot(i);
+        }
+        writer = new Thread(AsyncLogger::run, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLogger::flush, "async-logger-flush"));
+    }
+
+    private static class Slot {
+        volatile long sequence;
+        String template;
+        int longArgs; // bit i set: argument i is in numbers[i], otherwise in objects[i]
+        final Object[] objects = new Object[MAX_ARGS];
+        final long[] numbers = new long[MAX_ARGS];
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    public static class Level {
+        final int severity;
+        final boolean sampled;
+
+        Level(int severity, boolean sampled) {
+            this.severity = severity;
+            this.sampled = sampled;
+        }
+
+        // For guarding work done only to build arguments, e.g. a response preview
+        public boolean enabled() {
+            return severity >= threshold;
+        }
+
+        private boolean accept() {
+            if (severity < threshold) return false;
+            int every = sampleEvery;
+            if (sampled && every > 1 && ThreadLocalRandom.current().nextInt(every) != 0) {
+                sampledOut.increment();
+                return false;
+            }
+            return true;
+        }
+
+        public void log(String template) {
+            if (accept()) publish(this, template, 0, null, null, null, null, 0, 0, 0, 0);
+        }
+
+        public void log(String template, Object a) {
+            if (accept()) publish(this, template, 0, a, null, null, null, 0, 0, 0, 0);
+        }
+
+        public void log(String template, long a) {
+            if (accept()) publish(this, template, 1, null, null, null, null, a, 0, 0, 0);
+        }
+
+        public void log(String template, Object a, Object b) {
+            if (accept()) publish(this, template, 0, a, b, null, null, 0, 0, 0, 0);
+        }
+
+        public void log(String template, Object a, long b) {
+            if (accept()) publish(this, template, 2, a, null, null, null, 0, b, 0, 0);
+        }
+
+        public void log(String template, long a, Object b) {
+            if (accept()) publish(this, template, 1, null, b, null, null, a, 0, 0, 0);
+        }
+
+        public void log(String template, long a, long b) {
+            if (accept()) publish(this, template, 3, null, null, null, null, a, b, 0, 0);
+        }
+
+        public void log(String template, Object a, Object b, Object c) {
+            if (accept()) publish(this, template, 0, a, b, c, null, 0, 0, 0, 0);
+        }
+
+        public void log(String template, Object a, long b, long c) {
+            if (accept()) publish(this, template, 6, a, null, null, null, 0, b, c, 0);
+        }
+
+        public void log(String template, long a, long b, Object c) {
+            if (accept()) publish(this, template, 3, null, null, c, null, a, b, 0, 0);
+        }
+
+        public void log(String template, long a, long b, long c) {
+            if (accept()) publish(this, template, 7, null, null, null, null, a, b, c, 0);
+        }
+
+        public void log(String template, long a, long b, Object c, long d) {
+            if (accept()) publish(this, template, 11, null, null, c, null, a, b, 0, d);
+        }
+
+        public void log(String template, Object a, long b, long c, long d) {
+            if (accept()) publish(this, template, 14, a, null, null, null, 0, b, c, d);
+        }
+    }
+
+    // "-log <level>" and "-logSample <n>", unknown levels leave the threshold alone
+    public static void configure(String level, int sample) {
+        if (level != null) {
+            for (int i = 0; i < LEVEL_NAMES.length; i++) {
+                if (LEVEL_NAMES[i].equalsIgnoreCase(level)) threshold = i;
+            }
+        }
+        sampleEvery = Math.max(1, sample);
+    }
+
+    private static void publish(Level level, String template, int longArgs, Object a, Object b, Object c, Object d,
+                                long x, long y, long z, long w) {
+        long position = tail.get();
+        Slot slot;
+        while (true) {
+            slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (difference < 0) {
+                // The writer has not freed this slot yet: the ring is full
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        slot.template = template;
+        slot.longArgs = longArgs;
+        slot.objects[0] = a;
+        slot.objects[1] = b;
+        slot.objects[2] = c;
+        slot.objects[3] = d;
+        slot.numbers[0] = x;
+        slot.numbers[1] = y;
+        slot.numbers[2] = z;
+        slot.numbers[3] = w;
+        slot.sequence = position + 1;
+        if (writerWaiting) {
+            writerWaiting = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void run() {
+        OutputStream out = new FileOutputStream(FileDescriptor.out);
+        StringBuilder line = new StringBuilder(256);
+        byte[] buffer = new byte[LINE_BUFFER];
+        int buffered = 0;
+        long reportedDrops = 0;
+        long next = 0;
+        try {
+            while (true) {
+                Slot slot = slots[(int) next & mask];
+                if (slot.sequence != next + 1) {
+                    // Ring drained: say what was lost, hand the batch to the console, then sleep
+                    long drops = dropped.sum();
+                    if (drops != reportedDrops) {
+                        line.setLength(0);
+                        line.append("[logger dropped ").append(drops - reportedDrops).append(" messages, ring full]");
+                        buffered = append(out, buffer, buffered, line);
+                        reportedDrops = drops;
+                    }
+                    if (buffered > 0) {
+                        out.write(buffer, 0, buffered);
+                        buffered = 0;
+                    }
+                    flushed = next;
+                    writerWaiting = true;
+                    if (slot.sequence != next + 1) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    writerWaiting = false;
+                    continue;
+                }
+                line.setLength(0);
+                try {
+                    format(line, slot);
+                } catch (RuntimeException e) {
+                    // An argument's toString failed: say so instead of losing the writer
+                    line.setLength(0);
+                    line.append("[unformattable message \"").append(slot.template).append("\": ").append(e).append(']');
+                }
+                slot.template = null;
+                slot.objects[0] = slot.objects[1] = slot.objects[2] = slot.objects[3] = null;
+                slot.sequence = next + CAPACITY;
+                next++;
+                buffered = append(out, buffer, buffered, line);
+                written.increment();
+            }
+        } catch (IOException e) {
+            // stdout is gone, nothing left to log to
+        }
+    }
+
+    private static void format(StringBuilder line, Slot slot) {
+        String template = slot.template;
+        int argument = 0;
+        int from = 0;
+        int at;
+        while ((at = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, at);
+            if (argument < MAX_ARGS) {
+                if ((slot.longArgs & (1 << argument)) != 0) {
+                    line.append(slot.numbers[argument]);
+                } else {
+                    line.append(slot.objects[argument]);
+                }
+            }
+            argument++;
+            from = at + 2;
+        }
+        line.append(template, from, template.length());
+    }
+
+    // Encodes the line as UTF-8 plus a newline into buffer, writing the buffer out first when
+    // the line would not fit so lines never split between writes
+    private static int append(OutputStream out, byte[] buffer, int buffered, CharSequence line) throws IOException {
+        int length = line.length();
+        if (buffered + length * 3 + 1 > buffer.length) {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+            if (length * 3 + 1 > buffer.length) length = (buffer.length - 1) / 3;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                buffer[buffered++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[buffered++] = (byte) (0xC0 | (c >> 6));
+                buffer[buffered++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[buffered++] = '?';
+            } else {
+                buffer[buffered++] = (byte) (0xE0 | (c >> 12));
+                buffer[buffered++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[buffered++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer[buffered++] = '\n';
+        return buffered;
+    }
+
+    // Waits, up to a second, until everything logged so far has been written. Callers about to
+    // print to System.out directly use it to keep their output after the logged lines.
+    public static void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (flushed < target && System.nanoTime() < deadline && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    public static String stats() {
+        return String.format("logged=%d dropped=%d sampledOut=%d", written.sum(), dropped.sum(), sampledOut.sum());
+    }
+}
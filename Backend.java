@@ -0,0 +1,145 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Routing state for one registered server, replaces the per-Socket maps in LoadBalancer
+public class Backend {
+    // Join connection of a server registered here; null for a mirror of a peer LB's server and
+    // for a server restored from the registry snapshot (see RegistrySnapshot) until it rejoins
+    final Socket socket;
+    final int port;
+    final String balancingMethod;
+    // Peer LB the server joined (see PeerSync), null when it joined this LB
+    final String owner;
+    private final InetAddress host;
+    // Last load report from the server, for peer snapshots (servers joined here only)
+    volatile String lastReport;
+
+    // Load used for routing: the last reported load plus assignments the server has not seen yet.
+    // Written by the join connection and the routing path, read lock-free by routing.
+    final AtomicInteger load = new AtomicInteger(0);
+    volatile long lastHeartbeat;
+
+    // In-flight accounting between heartbeats. assigned counts SERVER_PORT replies for this
+    // server; seqOffset lines it up with the server's own accepted-request counter (seq),
+    // so assigned - (seq + seqOffset) is the number of assignments still on their way.
+    final AtomicLong assigned = new AtomicLong(0);
+    volatile int reportedLoad;
+    volatile long assignedAtLastReport;
+    long seqOffset; // only touched by the join connection
+
+    // Estimated milliseconds of work assigned by the LB that should not have finished yet, kept
+    // while least-work is configured. workDue holds the redirected part by the tick of
+    // LoadBalancer.WORK_TICK_MILLIS it is due in, a ring of WORK_SLOTS ticks.
+    final AtomicLong outstandingWork = new AtomicLong(0);
+    private final AtomicLongArray workDue = new AtomicLongArray(LoadBalancer.WORK_SLOTS);
+    private long workReleasedTick; // only touched by the releaser
+
+    // Per WireCodec request type code, the time (ms) until which the server's bulkhead for that
+    // type is full and routing should pass it over; 0 when it is not
+    final AtomicLongArray busyUntil = new AtomicLongArray(WireCodec.REQUEST_TYPES.length);
+
+    // CPU in use on the server's machine as of its last report, in percent
+    volatile int cpuPercent;
+
+    // Position in LoadBalancer's LoadIndex, guarded by the index lock
+    int heapIndex = -1;
+
+    // Outlier state: failures clients and proxied requests saw in a row, whether the server is
+    // ejected from routing for now, and how often it was (ejected and ejections are guarded by
+    // LoadBalancer's registry lock). removed is set once the server left for good.
+    final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+    boolean ejected;
+    int ejections;
+    volatile boolean removed;
+    // When the server was readmitted after an ejection, 0 once it is back at full weight
+    volatile long slowStartFrom;
+
+    // STATS series for this port, continued by a server that rejoins on the same port
+    final LongAdder assignmentsTotal;
+    final LatencyHistogram firstByteLatency;
+
+    Backend(Socket socket, int port, String balancingMethod) {
+        this(socket, null, socket.getInetAddress(), port, balancingMethod);
+    }
+
+    // Mirror of a server that joined the peer LB owner
+    Backend(String owner, InetAddress host, int port, String balancingMethod) {
+        this(null, owner, host, port, balancingMethod);
+    }
+
+    // Server of the last registry snapshot, routed to until it rejoins or turns out to be gone
+    Backend(InetAddress host, int port, String balancingMethod) {
+        this(null, null, host, port, balancingMethod);
+    }
+
+    private Backend(Socket socket, String owner, InetAddress host, int port, String balancingMethod) {
+        this.socket = socket;
+        this.owner = owner;
+        this.host = host;
+        this.port = port;
+        this.balancingMethod = balancingMethod;
+        this.lastHeartbeat = System.currentTimeMillis();
+        this.workReleasedTick = lastHeartbeat / LoadBalancer.WORK_TICK_MILLIS;
+        this.assignmentsTotal = LoadBalancer.assignmentsTotal.get(Integer.toString(port));
+        this.firstByteLatency = LoadBalancer.firstByteLatency.get(Integer.toString(port));
+    }
+
+    boolean restored() {
+        return socket == null && owner == null;
+    }
+
+    // Count a redirected request's estimate until the tick it should be done in. Estimates
+    // beyond the ring's span are released at its end.
+    void addWork(long work, long nowMillis) {
+        outstandingWork.addAndGet(work);
+        long ticks = Math.max(1, Math.min(LoadBalancer.WORK_SLOTS - 1,
+                                          (work + LoadBalancer.WORK_TICK_MILLIS - 1) / LoadBalancer.WORK_TICK_MILLIS));
+        long due = nowMillis / LoadBalancer.WORK_TICK_MILLIS + ticks;
+        workDue.addAndGet((int) (due & (LoadBalancer.WORK_SLOTS - 1)), work);
+    }
+
+    // Release the work due in the ticks after the last release, up to and including tick
+    void releaseWork(long tick) {
+        long from = Math.max(workReleasedTick + 1, tick - LoadBalancer.WORK_SLOTS + 1);
+        for (long t = from; t <= tick; t++) {
+            long due = workDue.getAndSet((int) (t & (LoadBalancer.WORK_SLOTS - 1)), 0);
+            if (due != 0) outstandingWork.addAndGet(-due);
+        }
+        workReleasedTick = Math.max(workReleasedTick, tick);
+    }
+
+    void clearWork() {
+        for (int i = 0; i < LoadBalancer.WORK_SLOTS; i++) {
+            workDue.set(i, 0);
+        }
+        outstandingWork.set(0);
+    }
+
+    // Relative routing weight in percent, static servers are slightly penalized as in weighted load.
+    // A readmitted server ramps up from 10% over LoadBalancer.slowStartMillis.
+    int weight() {
+        return (balancingMethod.equals("static") ? 83 : 100) * rampPercent() / 100;
+    }
+
+    // Share of its normal traffic a server in slow start should get, 100 when it is not
+    int rampPercent() {
+        long from = slowStartFrom;
+        if (from == 0) return 100;
+        long elapsed = System.currentTimeMillis() - from;
+        if (elapsed >= LoadBalancer.slowStartMillis) {
+            slowStartFrom = 0;
+            return 100;
+        }
+        return (int) Math.max(10, elapsed * 100 / LoadBalancer.slowStartMillis);
+    }
+
+    // Where clients (or the LB in proxy mode) reach this server
+    InetSocketAddress address() {
+        return new InetSocketAddress(host != null ? host : InetAddress.getLoopbackAddress(), port);
+    }
+}
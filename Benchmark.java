@@ -0,0 +1,696 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Micro load tools for the load balancer, run against a local LoadBalancer
+// Usage: java Benchmark lookups [threads] [seconds] [backends] [lbPort[,lbPort...]] [connect|keepalive|pipelined|binary]
+//        java Benchmark routing [iterations]
+//        java Benchmark codec [iterations]
+//        java Benchmark sessions [count] [serverPort] [streamSeconds]   (talks to one Server directly)
+//        java Benchmark files [seconds] [sizeMB...]
+//        java Benchmark affinity [keys] [backends]
+//        java Benchmark reports [backends] [seconds]
+//        java Benchmark directory [threads] [seconds] [redirect|proxy|lease] [lbPort]   (needs running Servers)
+public class Benchmark {
+    // Keeps the JIT from discarding benchmarked results
+    static volatile long blackhole;
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "lookups";
+        switch (scenario) {
+            case "lookups":
+                int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+                int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+                int backends = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+                int[] lbPorts = args.length > 4 ? LookupClient.parsePorts(args[4]) : new int[] {9001};
+                String lookupMode = args.length > 5 ? args[5] : "connect";
+                runLookups(threads, seconds, backends, lbPorts, lookupMode);
+                break;
+            case "routing":
+                int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+                runRouting(iterations);
+                break;
+            case "codec":
+                int messages = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+                runCodec(messages);
+                break;
+            case "sessions":
+                int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+                int serverPort = args.length > 2 ? Integer.parseInt(args[2]) : 7001;
+                int streamSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+                runSessions(sessions, serverPort, streamSeconds);
+                break;
+            case "affinity":
+                int keys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+                int ringBackends = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+                runAffinity(keys, ringBackends);
+                break;
+            case "reports":
+                int reportBackends = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+                int reportSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+                runReports(reportBackends, reportSeconds);
+                break;
+            case "files":
+                int fileSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+                int[] sizes = args.length > 2 ? new int[args.length - 2] : new int[] {1, 16, 256};
+                for (int i = 2; i < args.length; i++) {
+                    sizes[i - 2] = Integer.parseInt(args[i]);
+                }
+                runFiles(fileSeconds, sizes);
+                break;
+            case "directory":
+                int directoryThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+                int directorySeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+                String mode = args.length > 3 ? args[3] : "redirect";
+                int directoryLbPort = args.length > 4 ? Integer.parseInt(args[4]) : 9001;
+                runDirectory(directoryThreads, directorySeconds, mode, directoryLbPort);
+                break;
+            default:
+                System.out.println("Unknown scenario: " + scenario);
+        }
+    }
+
+    // Register fake backends on the load balancer, returns their join sockets
+    static List<Socket> joinFakeBackends(int count, int lbPort, int firstPort) throws IOException {
+        List<Socket> joined = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Socket lb = new Socket("localhost", lbPort);
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(lb.getOutputStream()));
+            BufferedReader in = new BufferedReader(new InputStreamReader(lb.getInputStream()));
+            out.write("join -v dynamic port=" + (firstPort + i) + "\n");
+            out.flush();
+            if (!"join_accepted".equals(in.readLine())) {
+                throw new IOException("Fake backend " + (firstPort + i) + " was not accepted");
+            }
+            joined.add(lb);
+        }
+        return joined;
+    }
+
+    // Closed-loop REQUEST lookups: "connect" opens one connection per lookup like Client,
+    // "keepalive" reuses one LookupClient connection per thread, "pipelined" also sends
+    // batches of 32 lookups before reading the replies, "binary" pipelines WireCodec frames
+    private static final int PIPELINE_DEPTH = 32;
+
+    // With several peered load balancers the backends join the first, the others learn them
+    // from it, and the threads' lookups are spread over all of them
+    private static void runLookups(int threads, int seconds, int backends, int[] lbPorts, String mode) throws Exception {
+        List<Socket> fakeBackends = joinFakeBackends(backends, lbPorts[0], 20000);
+        if (lbPorts.length > 1) {
+            Thread.sleep(500);
+        }
+        AtomicLong completed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        System.out.println("=== Lookup Benchmark (" + mode + ") ===");
+        System.out.println("Threads: " + threads + ", Duration: " + seconds + "s, Backends: " + backends +
+                           ", Load balancers: " + Arrays.toString(lbPorts));
+
+        LookupClient client = new LookupClient("localhost", lbPorts, threads, mode.equals("binary"));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final String request = t % 2 == 0 ? "REQUEST DIRECTORY" : "REQUEST COMPUTATION 5";
+            final int lbPort = lbPorts[t % lbPorts.length];
+            executor.submit(() -> {
+                boolean pipelined = mode.equals("pipelined") || mode.equals("binary");
+                List<String> batch = Collections.nCopies(pipelined ? PIPELINE_DEPTH : 1, request.substring(8));
+                while (System.nanoTime() < deadline && !mode.equals("connect")) {
+                    try {
+                        for (String response : client.lookupAll(batch)) {
+                            if (response.startsWith("SERVER_PORT")) {
+                                completed.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+                while (System.nanoTime() < deadline && mode.equals("connect")) {
+                    try (Socket socket = new Socket("localhost", lbPort)) {
+                        socket.setTcpNoDelay(true);
+                        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                        out.write(request + "\n");
+                        out.flush();
+                        String response = in.readLine();
+                        if (response != null && response.startsWith("SERVER_PORT")) {
+                            completed.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(seconds + 30, TimeUnit.SECONDS);
+
+        for (Socket s : fakeBackends) {
+            s.close();
+        }
+
+        System.out.println("Completed lookups: " + completed.get() + ", failed: " + failed.get());
+        System.out.println("Throughput: " + (completed.get() / seconds) + " lookups/s");
+        if (!mode.equals("connect")) {
+            client.printStats();
+        }
+        client.close();
+    }
+
+    // Closed-loop DIRECTORY requests end to end: redirected (REQUEST, then connect to the server),
+    // relayed by the load balancer (PROXY) or routed locally from a lease (LEASE)
+    private static LeaseCache leaseCache;
+
+    private static void runDirectory(int threads, int seconds, String mode, int lbPort) throws Exception {
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong failed = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        LookupClient lb = new LookupClient("localhost", lbPort, 1);
+        if (mode.equals("lease")) {
+            leaseCache = new LeaseCache(lb);
+            if (!leaseCache.start()) {
+                System.out.println("Load balancer hands out no leases (start it with -lease <ms>)");
+                return;
+            }
+        }
+
+        System.out.println("=== Directory Benchmark (" + mode + ") ===");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.submit(() -> {
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    try {
+                        if (directoryRequest(mode, lbPort)) {
+                            latencies.add(System.nanoTime() - start);
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(seconds + 30, TimeUnit.SECONDS);
+        if (leaseCache != null) {
+            leaseCache.close();
+        }
+        lb.close();
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        System.out.println("Completed: " + sorted.size() + ", failed: " + failed.get());
+        System.out.println("Throughput: " + (sorted.size() / seconds) + " requests/s");
+        if (!sorted.isEmpty()) {
+            System.out.printf("Latency p50=%.2fms p90=%.2fms p99=%.2fms%n",
+                sorted.get(sorted.size() / 2) / 1e6,
+                sorted.get((int) (sorted.size() * 0.90)) / 1e6,
+                sorted.get((int) (sorted.size() * 0.99)) / 1e6);
+        }
+    }
+
+    private static boolean directoryRequest(String mode, int lbPort) throws IOException {
+        if (mode.equals("lease")) {
+            int port = leaseCache.pickPort();
+            return port > 0 && directoryFromServer(port);
+        }
+
+        try (Socket lb = new Socket("localhost", lbPort)) {
+            lb.setTcpNoDelay(true);
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(lb.getOutputStream()));
+            BufferedReader in = new BufferedReader(new InputStreamReader(lb.getInputStream()));
+            if (mode.equals("proxy")) {
+                out.write("PROXY DIRECTORY\n");
+                out.flush();
+                return readUntilEnd(in);
+            }
+
+            out.write("REQUEST DIRECTORY\n");
+            out.flush();
+            String response = in.readLine();
+            if (response == null || !response.startsWith("SERVER_PORT")) return false;
+            return directoryFromServer(Integer.parseInt(response.split(" ")[1]));
+        }
+    }
+
+    private static boolean directoryFromServer(int port) throws IOException {
+        try (Socket server = new Socket("localhost", port)) {
+            server.setTcpNoDelay(true);
+            BufferedWriter serverOut = new BufferedWriter(new OutputStreamWriter(server.getOutputStream()));
+            serverOut.write("DIRECTORY\n");
+            serverOut.flush();
+            return readUntilEnd(new BufferedReader(new InputStreamReader(server.getInputStream())));
+        }
+    }
+
+    private static boolean readUntilEnd(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals("END")) return true;
+        }
+        return false;
+    }
+
+    // Hold count concurrent VIDEO_STREAMING sessions open against one server, all driven from
+    // a single selector so the client side needs no thread per session. Reports how long the
+    // server took to start every session, how many ran to completion and the frame jitter:
+    // how far the gap between consecutive VIDEO_FRAME lines was from the 1s frame period,
+    // counted once every session is open so the ramp-up does not skew it.
+    // The server's own thread and heap figures are in its "Execution stats" lines.
+    private static class StreamState {
+        final int id;
+        final long openedAt;
+        long lastFrameAt = 0;
+        final StringBuilder partial = new StringBuilder();
+        boolean complete = false;
+
+        StreamState(int id, long openedAt) {
+            this.id = id;
+            this.openedAt = openedAt;
+        }
+    }
+
+    private static void runSessions(int count, int serverPort, int streamSeconds) throws IOException {
+        System.out.println("=== Session Benchmark ===");
+        System.out.println("Sessions: " + count + ", VIDEO_STREAMING " + streamSeconds + "s on port " + serverPort);
+
+        byte[] request = ("VIDEO_STREAMING " + streamSeconds + "\n").getBytes(StandardCharsets.US_ASCII);
+        List<Long> startLatencies = new ArrayList<>();
+        List<Long> jitters = new ArrayList<>();
+        int completed = 0;
+        int failed = 0;
+        int open = 0;
+        ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        long begin = System.nanoTime();
+        long allOpenedAt = Long.MAX_VALUE;
+
+        try (Selector selector = Selector.open()) {
+            int opened = 0;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(streamSeconds * 3L + 30);
+            while ((opened < count || open > 0) && System.nanoTime() < deadline) {
+                if (opened < count) {
+                    // Open sessions in small batches and keep reading in between, so the
+                    // start latency is not inflated by the time spent opening the rest
+                    for (int batch = 0; batch < 50 && opened < count; batch++, opened++) {
+                        try {
+                            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", serverPort));
+                            StreamState state = new StreamState(opened, System.nanoTime());
+                            channel.write(ByteBuffer.wrap(request));
+                            channel.configureBlocking(false);
+                            channel.register(selector, SelectionKey.OP_READ, state);
+                            open++;
+                        } catch (IOException e) {
+                            failed++;
+                        }
+                    }
+                    if (opened == count) {
+                        allOpenedAt = System.nanoTime();
+                        System.out.printf("Opened %d sessions in %.0fms%n", open, (System.nanoTime() - begin) / 1e6);
+                    }
+                    selector.selectNow();
+                } else {
+                    selector.select(1000);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    StreamState state = (StreamState) key.attachment();
+                    readBuffer.clear();
+                    int n;
+                    try {
+                        n = ((SocketChannel) key.channel()).read(readBuffer);
+                    } catch (IOException e) {
+                        n = -1;
+                    }
+                    if (n > 0) {
+                        long now = System.nanoTime();
+                        state.partial.append(new String(readBuffer.array(), 0, n, StandardCharsets.US_ASCII));
+                        int newline;
+                        while ((newline = state.partial.indexOf("\n")) >= 0) {
+                            String line = state.partial.substring(0, newline);
+                            state.partial.delete(0, newline + 1);
+                            if (line.startsWith("VIDEO_STREAMING_START")) {
+                                startLatencies.add(now - state.openedAt);
+                            } else if (line.startsWith("VIDEO_FRAME ")) {
+                                if (state.lastFrameAt > allOpenedAt) {
+                                    jitters.add(Math.abs(now - state.lastFrameAt - TimeUnit.SECONDS.toNanos(1)));
+                                }
+                                state.lastFrameAt = now;
+                            } else if (line.startsWith("VIDEO_STREAMING_COMPLETE")) {
+                                state.complete = true;
+                            }
+                        }
+                        continue;
+                    }
+                    key.cancel();
+                    key.channel().close();
+                    open--;
+                    if (state.complete) {
+                        completed++;
+                    } else {
+                        failed++;
+                    }
+                }
+            }
+        }
+
+        System.out.println("Completed: " + completed + ", failed: " + failed + ", unfinished: " + open);
+        System.out.printf("Total time: %.1fs%n", (System.nanoTime() - begin) / 1e9);
+        printPercentiles("Session start latency", startLatencies);
+        printPercentiles("Frame jitter", jitters);
+    }
+
+    private static void printPercentiles(String label, List<Long> values) {
+        if (values.isEmpty()) return;
+        Collections.sort(values);
+        System.out.printf("%s (n=%d) p50=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms%n", label, values.size(),
+            values.get(values.size() / 2) / 1e6,
+            values.get((int) (values.size() * 0.99)) / 1e6,
+            values.get((int) (values.size() * 0.999)) / 1e6,
+            values.get(values.size() - 1) / 1e6);
+    }
+
+    // Server.sendFile throughput over loopback for generated files, per -fileio mode: the
+    // buffered stream copy baseline, transferTo (sendfile) and memory-mapped regions
+    private static void runFiles(int seconds, int[] sizesMb) throws Exception {
+        Path dir = Files.createTempDirectory("lb-files");
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        System.out.println("=== File Transfer Benchmark ===");
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress("localhost", 0));
+            for (int sizeMb : sizesMb) {
+                Path file = dir.resolve("file-" + sizeMb + "mb.bin");
+                generateFile(file, sizeMb * 1024L * 1024);
+                long size = Files.size(file);
+
+                for (String mode : new String[] {"stream", "transfer", "mmap"}) {
+                    long bytes = 0;
+                    long start = System.nanoTime();
+                    long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+                    try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                        while (System.nanoTime() < deadline) {
+                            SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+                            Future<Long> received = reader.submit(() -> drain(client));
+                            try (SocketChannel server = listener.accept()) {
+                                Server.sendFile(source, 0, size, server, mode);
+                            }
+                            bytes += received.get();
+                        }
+                    }
+                    double elapsed = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("size=%-6s mode=%-9s %8.1f MB/s%n", sizeMb + "MB", mode, bytes / elapsed / (1024 * 1024));
+                }
+                Files.delete(file);
+            }
+        } finally {
+            reader.shutdownNow();
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void generateFile(Path file, long size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    // Read a socket to the end and count the bytes, as a downloading client would
+    private static long drain(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long total = 0;
+        try {
+            int n;
+            while ((n = channel.read(buffer)) >= 0) {
+                total += n;
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+        return total;
+    }
+
+    // Parse + reply cost per lookup message, text lines vs WireCodec frames, excluding the
+    // server selection both share. Allocation is read from the thread's allocation counter.
+    private static void runCodec(int iterations) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        byte[] line = "@17 REQUEST COMPUTATION 5s".getBytes(StandardCharsets.US_ASCII);
+
+        ByteBuffer frames = ByteBuffer.allocate(64 * 1024);
+        int batch = 0;
+        while (frames.remaining() >= WireCodec.MAX_FRAME) {
+            WireCodec.encodeRequest(frames, 17 + batch++, WireCodec.typeCode("COMPUTATION"), 5, new byte[0], 0);
+        }
+        frames.flip();
+        ByteBuffer replies = ByteBuffer.allocate(batch * 16);
+        WireCodec.Message message = new WireCodec.Message();
+
+        System.out.println("=== Codec Benchmark ===");
+        for (int round = 0; round < 3; round++) {
+            long sink = 0;
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += textLookup(line);
+            }
+            long textNanos = System.nanoTime() - start;
+            long textBytes = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+            allocated = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (!frames.hasRemaining()) {
+                    frames.rewind();
+                    replies.clear();
+                }
+                WireCodec.decode(frames, message);
+                int estimatedTime = message.number > 0 ? message.number : 10;
+                WireCodec.encodeServerPort(replies, message.tag, 7000 + estimatedTime);
+                sink += replies.position();
+            }
+            long binaryNanos = System.nanoTime() - start;
+            long binaryBytes = threads.getCurrentThreadAllocatedBytes() - allocated;
+            blackhole = sink;
+
+            System.out.printf("round %d  text   %6.1f ns/op %7.1f B/op%n", round,
+                (double) textNanos / iterations, (double) textBytes / iterations);
+            System.out.printf("round %d  binary %6.1f ns/op %7.1f B/op%n", round,
+                (double) binaryNanos / iterations, (double) binaryBytes / iterations);
+        }
+    }
+
+    // The text path of a pipelined lookup as the load balancer runs it: line to String,
+    // strip the tag, split, estimate, format the tagged reply
+    private static int textLookup(byte[] line) {
+        String message = new String(line, 0, line.length, StandardCharsets.US_ASCII);
+        int space = message.indexOf(' ');
+        String tag = message.substring(0, space);
+        message = message.substring(space + 1);
+
+        String[] parts = message.split(" ");
+        String requestType = parts.length > 1 ? parts[1] : "DIRECTORY";
+        String parameters = parts.length > 2 ? String.join(" ", Arrays.copyOfRange(parts, 2, parts.length)) : "";
+        int estimatedTime = LoadBalancer.estimateRequestTime(requestType, parameters);
+        String reply = tag + " " + "SERVER_PORT " + (7000 + estimatedTime) + "\n";
+        return reply.getBytes(StandardCharsets.US_ASCII).length;
+    }
+
+    // In-process simulation of load reporting: count backends with bursty synthetic load, each
+    // reporting through its own LoadReporter straight into LoadBalancer.handleServerUpdate.
+    // Compares the fixed 5s heartbeat, a fixed 500ms one and change-driven reports on report
+    // rate, bytes and how far the LB's view of each load is from the true value over time.
+    private static void runReports(int count, int seconds) throws InterruptedException {
+        System.out.println("=== Load Report Simulation (" + count + " backends, " + seconds + "s per mode) ===");
+        Backend[] joined = new Backend[count];
+        for (int i = 0; i < count; i++) {
+            joined[i] = LoadBalancer.registerServer(new Socket(), "join -v dynamic port=" + (20000 + i));
+        }
+
+        // name, delta, percent, coalesce ms, keepalive ms
+        Object[][] modes = {
+            {"fixed 5s", 0, 0, 0L, 5000L},
+            {"fixed 500ms", 0, 0, 0L, 500L},
+            {"on change", 2, 10, 50L, 5000L},
+        };
+        for (Object[] mode : modes) {
+            java.util.concurrent.atomic.AtomicIntegerArray load = new java.util.concurrent.atomic.AtomicIntegerArray(count);
+            LoadReporter[] reporters = new LoadReporter[count];
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                Backend backend = joined[i];
+                LoadBalancer.reconcileLoad(backend, 0, -1);
+                reporters[i] = new LoadReporter("report-" + i, () -> load.get(index), value -> "load=" + value,
+                    report -> LoadBalancer.handleServerUpdate(backend, report),
+                    (Integer) mode[1], (Integer) mode[2], (Long) mode[3], (Long) mode[4]);
+                reporters[i].start();
+            }
+
+            // 10ms ticks: bursts of 1-8 arrivals with 1% chance, each request finishes with 0.2%
+            // chance (about 5s, like COMPUTATION), so loads climb to about 20 and jump by several
+            // at once
+            Random random = new Random(42);
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            double errorSum = 0;
+            long staleSamples = 0;
+            long samples = 0;
+            while (System.nanoTime() < end) {
+                for (int i = 0; i < count; i++) {
+                    int current = load.get(i);
+                    int next = current;
+                    if (random.nextDouble() < 0.01) next += 1 + random.nextInt(8);
+                    for (int r = 0; r < current; r++) {
+                        if (random.nextDouble() < 0.002) next--;
+                    }
+                    if (next != current) {
+                        load.set(i, next);
+                        reporters[i].changed(next);
+                    }
+                    int error = Math.abs(next - joined[i].reportedLoad);
+                    errorSum += error;
+                    if (error > 2) staleSamples++;
+                    samples++;
+                }
+                Thread.sleep(10);
+            }
+
+            long reports = 0;
+            long bytes = 0;
+            for (LoadReporter reporter : reporters) {
+                reporter.stop();
+                reports += reporter.reports();
+                bytes += reporter.bytesSent();
+            }
+            System.out.printf("%-12s %8.1f reports/s %9.0f bytes/s   mean |error| %5.2f   off by >2: %5.1f%%%n",
+                mode[0], reports / (double) seconds, bytes / (double) seconds, errorSum / samples,
+                staleSamples * 100.0 / samples);
+        }
+
+        for (Backend backend : joined) {
+            LoadBalancer.cleanupServer(backend);
+        }
+    }
+
+    // In-process checks of the affinity ring: the share of keys that change owner when one
+    // server leaves or joins (ideally 1/n), and the load spread when Zipf-distributed filenames
+    // are assigned and held, with and without the load bound
+    private static void runAffinity(int keys, int count) {
+        System.out.println("=== Affinity Ring Benchmark ===");
+        List<Backend> pool = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pool.add(LoadBalancer.registerServer(new Socket(), "join -v dynamic port=" + (20000 + i)));
+        }
+        LoadBalancer.setStrategies(LoadBalancer.heavyStrategy, LoadBalancer.AFFINITY);
+
+        int[] before = owners(keys);
+        LoadBalancer.cleanupServer(pool.remove(count / 2));
+        int[] afterLeave = owners(keys);
+        pool.add(LoadBalancer.registerServer(new Socket(), "join -v dynamic port=" + (20000 + count)));
+        int[] afterJoin = owners(keys);
+        System.out.printf("%d keys, %d servers: leave moved %.2f%%, join moved %.2f%% (ideal %.2f%%)%n",
+            keys, count, moved(before, afterLeave) * 100.0 / keys, moved(afterLeave, afterJoin) * 100.0 / keys, 100.0 / count);
+
+        // 1000 filenames with Zipf(1.0) popularity, every assignment stays in flight
+        double[] cdf = LoadGenerator.zipfCdf(1000, 1.0);
+        Random random = new Random(42);
+        for (double bound : new double[] {1.0e9, 2.0, 1.25}) {
+            LoadBalancer.affinityBound = bound;
+            for (Backend b : pool) {
+                LoadBalancer.updateLoad(b, 0);
+            }
+            for (int i = 0; i < keys; i++) {
+                String name = "file-" + LoadGenerator.zipfSample(cdf, random.nextDouble()) + ".bin";
+                Backend selected = LoadBalancer.selectServer("FILE_TRANSFER", 5000, ConsistentHashRing.hash(name));
+                LoadBalancer.updateLoad(selected, selected.load.get() + 1);
+            }
+            int max = 0;
+            for (Backend b : pool) {
+                max = Math.max(max, b.load.get());
+            }
+            System.out.printf("bound=%-8s max/avg load %.2f%n", bound > 1e6 ? "none" : String.valueOf(bound),
+                max / ((double) keys / pool.size()));
+        }
+
+        for (Backend b : pool) {
+            LoadBalancer.cleanupServer(b);
+        }
+    }
+
+    private static int[] owners(int keys) {
+        int[] owners = new int[keys];
+        for (int i = 0; i < keys; i++) {
+            owners[i] = LoadBalancer.selectServer("FILE_TRANSFER", 5000, ConsistentHashRing.hash("key-" + i)).port;
+        }
+        return owners;
+    }
+
+    private static int moved(int[] before, int[] after) {
+        int moved = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (before[i] != after[i]) moved++;
+        }
+        return moved;
+    }
+
+    // In-process selectServer cost per strategy as the backend pool grows
+    private static void runRouting(int iterations) {
+        String[] strategies = {
+            LoadBalancer.LEAST_LOAD, LoadBalancer.LEAST_LOAD_INDEXED, LoadBalancer.POWER_OF_CHOICES, LoadBalancer.ROUND_ROBIN
+        };
+        Random random = new Random(42);
+
+        System.out.println("=== Routing Benchmark ===");
+        for (int poolSize : new int[] {10, 100, 1000}) {
+            List<Backend> pool = new ArrayList<>();
+            for (int i = 0; i < poolSize; i++) {
+                Backend b = LoadBalancer.registerServer(new Socket(), "join -v dynamic port=" + (20000 + i));
+                LoadBalancer.updateLoad(b, random.nextInt(50));
+                pool.add(b);
+            }
+
+            for (String strategy : strategies) {
+                LoadBalancer.setStrategies(strategy, LoadBalancer.lightStrategy);
+                long sink = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    // Simulate a heartbeat arriving every 1000 picks
+                    if (i % 1000 == 0) {
+                        LoadBalancer.updateLoad(pool.get(random.nextInt(poolSize)), random.nextInt(50));
+                    }
+                    sink += LoadBalancer.selectServer("COMPUTATION", 10000).port;
+                }
+                long elapsed = System.nanoTime() - start;
+                blackhole = sink;
+                System.out.printf("backends=%-5d strategy=%-20s %8.1f ns/op%n",
+                    poolSize, strategy, (double) elapsed / iterations);
+            }
+
+            for (Backend b : pool) {
+                LoadBalancer.cleanupServer(b);
+            }
+        }
+    }
+}
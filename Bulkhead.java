@@ -0,0 +1,88 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Admission limit for one request type on a Server: at most `limit` requests run at once and at
+// most `queueDepth` more wait for a slot; anything beyond that is refused right away so the
+// caller can answer BUSY instead of letting it queue behind long-running work. A slot is held
+// until the request finishes, including streamed sessions that outlive their session thread.
+public class Bulkhead {
+    private final String name;
+    private final int limit;
+    private final int queueDepth;
+    private final Semaphore slots;
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicLong admitted = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    public Bulkhead(String name, int limit, int queueDepth) {
+        this.name = name;
+        this.limit = limit;
+        this.queueDepth = queueDepth;
+        this.slots = new Semaphore(limit, true);
+    }
+
+    // Parses "TYPE=limit[:queue],TYPE=limit[:queue]", a missing queue depth means 0
+    public static Map<String, Bulkhead> parse(String spec) {
+        Map<String, Bulkhead> bulkheads = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            int eq = entry.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Bad bulkhead " + entry + ", expected TYPE=limit[:queue]");
+            String type = entry.substring(0, eq);
+            String[] sizes = entry.substring(eq + 1).split(":");
+            int limit = Math.max(1, Integer.parseInt(sizes[0]));
+            int queueDepth = sizes.length > 1 ? Math.max(0, Integer.parseInt(sizes[1])) : 0;
+            bulkheads.put(type, new Bulkhead(type, limit, queueDepth));
+        }
+        return bulkheads;
+    }
+
+    // Takes a slot, waiting in the queue if there is room in it; false when the request should
+    // be refused. Every true must be paired with a release().
+    public boolean tryAcquire() {
+        if (slots.tryAcquire()) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        if (queued.incrementAndGet() > queueDepth) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            slots.acquire();
+            admitted.incrementAndGet();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    // Every slot taken and the queue full, the next request would be refused
+    public boolean saturated() {
+        return slots.availablePermits() == 0 && queued.get() >= queueDepth;
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    public String stats() {
+        return String.format("%s active=%d/%d queued=%d/%d admitted=%d rejected=%d", name,
+            limit - slots.availablePermits(), limit, queued.get(), queueDepth, admitted.get(), rejected.get());
+    }
+}
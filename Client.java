@@ -1,10 +1,13 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 public class Client {
     public static void main(String[] args) throws IOException {
         Scanner scanner = new Scanner(System.in);
+        // "proxy": the load balancer relays the server's response instead of redirecting
+        boolean proxy = args.length > 0 && args[0].equals("proxy");
         
         System.out.println("=== Load Balancer Client ===");
         System.out.println("Available request types:");
@@ -22,7 +25,17 @@ public class Client {
         // Connect to load balancer
         Socket lbSocket = new Socket("localhost", 9001);
         BufferedWriter lbOut = new BufferedWriter(new OutputStreamWriter(lbSocket.getOutputStream()));
-        BufferedReader lbIn = new BufferedReader(new InputStreamReader(lbSocket.getInputStream()));
+        // Latin-1 maps bytes to chars one to one, so a raw FILE_TRANSFER body can be skipped by length
+        BufferedReader lbIn = new BufferedReader(new InputStreamReader(lbSocket.getInputStream(), StandardCharsets.ISO_8859_1));
+
+        if (proxy) {
+            lbOut.write("PROXY " + input + "\n");
+            lbOut.flush();
+            printResponse(lbIn);
+            lbSocket.close();
+            scanner.close();
+            return;
+        }
 
         // Send request to load balancer
         lbOut.write("REQUEST " + input + "\n");
@@ -37,32 +50,15 @@ public class Client {
             
             // Connect directly to assigned server
             Socket serverSocket = new Socket("localhost", port);
-            BufferedReader serverIn = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
+            BufferedReader serverIn = new BufferedReader(new InputStreamReader(serverSocket.getInputStream(), StandardCharsets.ISO_8859_1));
             BufferedWriter serverOut = new BufferedWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
             
             // Send request to server
             serverOut.write(input + "\n");
             serverOut.flush();
             
-            // Read server response
-            System.out.println("\n=== Server Response ===");
-            String line;
-            while ((line = serverIn.readLine()) != null) {
-                System.out.println(line);
-                
-                // For streaming and computation, show progress
-                if (line.contains("PROGRESS") || line.contains("FRAME")) {
-                    System.out.flush();
-                }
-                
-                // Check for completion
-                if (line.contains("COMPLETE") || line.contains("END")) {
-                    break;
-                }
-            }
-            
+            printResponse(serverIn);
             serverSocket.close();
-            System.out.println("\n=== Request Completed ===");
             
         } else {
             System.out.println("No server available: " + response);
@@ -70,4 +66,65 @@ public class Client {
         
         scanner.close();
     }
+
+    private static void printResponse(BufferedReader serverIn) throws IOException {
+        // Read server response
+        System.out.println("\n=== Server Response ===");
+        String line;
+        while ((line = serverIn.readLine()) != null) {
+            System.out.println(line);
+            long skipped = skipFileBody(serverIn, line);
+            if (skipped > 0) {
+                System.out.println("[" + skipped + " bytes of file content]");
+            }
+            
+            // For streaming and computation, show progress
+            if (line.contains("PROGRESS") || line.contains("FRAME")) {
+                System.out.flush();
+            }
+            
+            // Check for completion
+            if (line.contains("COMPLETE") || line.contains("END") || line.equals("NO_SERVER_AVAILABLE")) {
+                break;
+            }
+        }
+        
+        System.out.println("\n=== Request Completed ===");
+    }
+
+    // Tell the load balancer its assigned server could not be used (reason: connect, slow), so
+    // it can eject the server once enough clients agree
+    static void reportFailure(int serverPort, String reason) {
+        reportFailure(9001, serverPort, reason);
+    }
+
+    // Ejections are per load balancer: report to the one the server came from
+    static void reportFailure(int lbPort, int serverPort, String reason) {
+        try (Socket lb = new Socket("localhost", lbPort)) {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(lb.getOutputStream()));
+            out.write("FAILED " + serverPort + " " + reason + "\n");
+            out.flush();
+            new BufferedReader(new InputStreamReader(lb.getInputStream())).readLine();
+        } catch (IOException e) {
+            // The load balancer finds out on its own eventually
+        }
+    }
+
+    // After a "FILE_TRANSFER_START ... length=<n>" line, skip the n raw content bytes that
+    // follow it (the reader must be Latin-1). Returns the bytes skipped.
+    static long skipFileBody(BufferedReader in, String line) throws IOException {
+        int index = line.startsWith("FILE_TRANSFER_START") ? line.indexOf(" length=") : -1;
+        if (index < 0) return 0;
+        long length = Long.parseLong(line.substring(index + 8).trim());
+        long skipped = 0;
+        while (skipped < length) {
+            long n = in.skip(length - skipped);
+            if (n <= 0) {
+                if (in.read() < 0) break;
+                n = 1;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,161 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// COMPUTATION as real CPU work on a Server's work-stealing pool, one thread per core by default.
+// A job integrates 4/(1+x^2) over [0,1] with the midpoint rule (the result is pi), split into
+// fixed chunks that fork/join spreads over the pool, so concurrent jobs share the cores the way
+// real compute requests would. One requested unit is about one core-second of work: the steps
+// per core-second are measured once at startup. Finished chunks drive the job's progress, and a
+// cancelled job skips the chunks it has not started.
+public class ComputeKernel {
+    // About a millisecond of work per chunk, which bounds how late a cancellation takes effect
+    static final long CHUNK_STEPS = 1 << 19;
+    private static final long CALIBRATION_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+    private final ForkJoinPool pool;
+    private final long stepsPerUnit;
+    private final AtomicLong jobs = new AtomicLong(0);
+    private final AtomicLong cancelledJobs = new AtomicLong(0);
+    private final AtomicLong chunksRun = new AtomicLong(0);
+
+    public ComputeKernel(int threads) {
+        this.pool = new ForkJoinPool(threads);
+        this.stepsPerUnit = calibrate();
+    }
+
+    public int parallelism() {
+        return pool.getParallelism();
+    }
+
+    public long stepsPerUnit() {
+        return stepsPerUnit;
+    }
+
+    // Steps one core runs per second, after a first pass to get the chunk loop compiled. Timed
+    // in thread CPU time where the JVM has it, so servers starting together on shared cores do
+    // not each measure a fraction of a core.
+    private static long calibrate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+        integrate(0, CHUNK_STEPS, 1.0 / CHUNK_STEPS);
+        long steps = 0;
+        long start = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+        long elapsed;
+        do {
+            integrate(0, CHUNK_STEPS, 1.0 / CHUNK_STEPS);
+            steps += CHUNK_STEPS;
+            elapsed = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+        } while (elapsed < CALIBRATION_NANOS);
+        return Math.max(CHUNK_STEPS, steps * TimeUnit.SECONDS.toNanos(1) / elapsed);
+    }
+
+    // Midpoint sum of 4/(1+x^2) over steps [from, to) of width h
+    static double integrate(long from, long to, double h) {
+        double sum = 0;
+        for (long i = from; i < to; i++) {
+            double x = (i + 0.5) * h;
+            sum += 4.0 / (1.0 + x * x);
+        }
+        return sum * h;
+    }
+
+    public Job submit(int units) {
+        jobs.incrementAndGet();
+        Job job = new Job(Math.max(1, units) * stepsPerUnit);
+        pool.execute(job.task);
+        return job;
+    }
+
+    public String stats() {
+        return String.format("threads=%d active=%d jobs=%d cancelled=%d chunks=%d steals=%d unit=%dM steps",
+            pool.getParallelism(), pool.getActiveThreadCount(), jobs.get(), cancelledJobs.get(), chunksRun.get(),
+            pool.getStealCount(), stepsPerUnit / 1_000_000);
+    }
+
+    public class Job {
+        final long steps;
+        final long chunks;
+        final double h;
+        final AtomicLong chunksDone = new AtomicLong(0);
+        volatile boolean cancelled;
+        final ForkJoinTask<Double> task;
+
+        Job(long steps) {
+            this.steps = steps;
+            this.chunks = (steps + CHUNK_STEPS - 1) / CHUNK_STEPS;
+            this.h = 1.0 / steps;
+            this.task = new Range(this, 0, chunks);
+        }
+
+        // Share of the chunks finished so far, 0 to 100
+        public int percent() {
+            return (int) (chunksDone.get() * 100 / chunks);
+        }
+
+        // Wait up to millis for the job to finish, true once it has
+        public boolean await(long millis) throws InterruptedException {
+            try {
+                task.get(millis, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Computation failed", e.getCause());
+            }
+        }
+
+        public double result() {
+            return task.join();
+        }
+
+        // Chunks already running finish, the rest are skipped
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                cancelledJobs.incrementAndGet();
+            }
+        }
+
+        void chunkDone() {
+            chunksDone.incrementAndGet();
+            chunksRun.incrementAndGet();
+        }
+    }
+
+    // Chunks [from, to) of a job: split in halves down to one chunk, the left half forked so
+    // idle workers can steal it
+    private static class Range extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+        private final Job job;
+        private final long from;
+        private final long to;
+
+        Range(Job job, long from, long to) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Double compute() {
+            if (job.cancelled) return 0.0;
+            if (to - from == 1) {
+                double sum = integrate(from * CHUNK_STEPS, Math.min(job.steps, to * CHUNK_STEPS), job.h);
+                job.chunkDone();
+                return sum;
+            }
+            long mid = (from + to) >>> 1;
+            Range left = new Range(job, from, mid);
+            left.fork();
+            double right = new Range(job, mid, to).compute();
+            return left.join() + right;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Immutable consistent hash ring over a snapshot of the registered servers, rebuilt on every
+// join or cleanup like the backends array. Each server owns VIRTUAL_NODES points, so a join or
+// leave moves only about 1/n of the keys. select applies bounded loads: a key goes to the first
+// server clockwise from its hash whose load is below bound * average, so a hot key spills to
+// the next server instead of overloading its owner.
+public class ConsistentHashRing {
+    static final int VIRTUAL_NODES = 128;
+
+    private final Backend[] members;
+    private final long[] points;
+    private final Backend[] owners;
+
+    private ConsistentHashRing(Backend[] members, long[] points, Backend[] owners) {
+        this.members = members;
+        this.points = points;
+        this.owners = owners;
+    }
+
+    public static ConsistentHashRing build(Backend[] members) {
+        int n = members.length * VIRTUAL_NODES;
+        long[] hashes = new long[n];
+        for (int m = 0; m < members.length; m++) {
+            // Points depend only on the server's identity, so they survive other servers coming and going
+            String identity = members[m].address().getAddress().getHostAddress() + ":" + members[m].port + "#";
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                hashes[m * VIRTUAL_NODES + v] = hash(identity + v);
+            }
+        }
+
+        // Sort points, keeping each one's owner
+        Integer[] index = new Integer[n];
+        for (int i = 0; i < n; i++) index[i] = i;
+        Arrays.sort(index, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        long[] points = new long[n];
+        Backend[] owners = new Backend[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = hashes[index[i]];
+            owners[i] = members[index[i] / VIRTUAL_NODES];
+        }
+        return new ConsistentHashRing(members.clone(), points, owners);
+    }
+
+    // The key's owner, or the first server after it whose routing load is below
+    // ceil(bound * (total load + 1) / servers); null when the ring is empty
+    public Backend select(long keyHash, double bound) {
+        if (points.length == 0) return null;
+
+        long total = 0;
+        for (Backend b : members) {
+            total += b.load.get();
+        }
+        long capacity = (long) Math.ceil(bound * (total + 1) / members.length);
+
+        int start = Arrays.binarySearch(points, keyHash);
+        if (start < 0) start = -start - 1;
+        for (int i = 0; i < points.length; i++) {
+            Backend candidate = owners[(start + i) % points.length];
+            if (candidate.load.get() < capacity) return candidate;
+        }
+        return owners[start % points.length];
+    }
+
+    // FNV-1a over the UTF-8 bytes, then a murmur finalizer to spread nearby keys
+    public static long hash(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) >= 0x80) {
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                return hash(bytes, bytes.length);
+            }
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // Same value as hash(String) for the same UTF-8 bytes, for binary lookups
+    public static long hash(byte[] bytes, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ (bytes[i] & 0xFF)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Learned service time per request type and duration bucket. Servers time every request they
+// complete and report per-bucket means with their load (cost=...); the LB folds each report
+// into an EWMA and routes with it instead of the static per-type guesses. Durations within a
+// power-of-two bucket share one cell, learned per requested second so 5s and 7s requests
+// scale with what they asked for. Requests without a duration learn plain milliseconds.
+public class CostEstimator {
+    // Weight of a new report in the EWMA
+    static final double ALPHA = 0.3;
+    // Errors are relative to the observed cost, but at least this many ms, so a 1ms cache hit
+    // against a 3ms estimate does not read as a 200% miss
+    static final double ERROR_FLOOR_MILLIS = 10.0;
+
+    private static class Cell {
+        double unitMillis;      // EWMA of milliseconds per requested second (or per request)
+        double errorEwma = -1;  // EWMA of |estimate - observed| / observed, before each update
+        long samples = 0;
+    }
+
+    private final Map<String, Cell> cells = new ConcurrentHashMap<>();
+
+    // 0 for requests without a duration, otherwise the smallest power of two >= duration
+    public static int bucket(int durationSeconds) {
+        if (durationSeconds <= 0) return 0;
+        return durationSeconds == 1 ? 1 : Integer.highestOneBit(durationSeconds - 1) << 1;
+    }
+
+    static String key(String requestType, int durationSeconds) {
+        return requestType + "/" + bucket(durationSeconds);
+    }
+
+    // Milliseconds the request should take, fallbackMillis until its bucket has been observed
+    public long estimate(String requestType, int durationSeconds, long fallbackMillis) {
+        Cell cell = cells.get(key(requestType, durationSeconds));
+        if (cell == null) return fallbackMillis;
+        synchronized (cell) {
+            return Math.round(cell.unitMillis * Math.max(1, durationSeconds));
+        }
+    }
+
+    // Fold in one report: count requests of a bucket averaged unitMillis. The first report of a
+    // bucket is scored against fallbackUnitMillis, what routing assumed before it.
+    public void observe(String bucketKey, long count, double unitMillis, double fallbackUnitMillis) {
+        if (count <= 0) return;
+        Cell cell = cells.computeIfAbsent(bucketKey, k -> {
+            Cell fresh = new Cell();
+            fresh.unitMillis = fallbackUnitMillis;
+            return fresh;
+        });
+        synchronized (cell) {
+            double error = Math.abs(cell.unitMillis - unitMillis) / Math.max(ERROR_FLOOR_MILLIS, unitMillis);
+            cell.errorEwma = cell.errorEwma < 0 ? error : cell.errorEwma + ALPHA * (error - cell.errorEwma);
+            cell.unitMillis = cell.samples == 0 ? unitMillis : cell.unitMillis + ALPHA * (unitMillis - cell.unitMillis);
+            cell.samples += count;
+        }
+    }
+
+    public interface CellConsumer {
+        void accept(String bucketKey, double unitMillis, double errorEwma, long samples);
+    }
+
+    // Every learned bucket, for the LB's registry snapshot
+    public void forEach(CellConsumer consumer) {
+        for (Map.Entry<String, Cell> entry : cells.entrySet()) {
+            Cell cell = entry.getValue();
+            synchronized (cell) {
+                consumer.accept(entry.getKey(), cell.unitMillis, cell.errorEwma, cell.samples);
+            }
+        }
+    }
+
+    // Take a bucket over from a snapshot; buckets already learned since startup win
+    public void restore(String bucketKey, double unitMillis, double errorEwma, long samples) {
+        Cell cell = new Cell();
+        cell.unitMillis = unitMillis;
+        cell.errorEwma = errorEwma;
+        cell.samples = samples;
+        cells.putIfAbsent(bucketKey, cell);
+    }
+
+    // "TYPE/bucket est=<ms per unit> err=<error EWMA> n=<requests>", one per observed bucket
+    public String stats() {
+        StringBuilder stats = new StringBuilder();
+        for (Map.Entry<String, Cell> entry : new TreeMap<>(cells).entrySet()) {
+            Cell cell = entry.getValue();
+            synchronized (cell) {
+                if (stats.length() > 0) stats.append("; ");
+                stats.append(String.format("%s est=%.0fms err=%.1f%% n=%d", entry.getKey(), cell.unitMillis,
+                    cell.errorEwma * 100, cell.samples));
+            }
+        }
+        return stats.toString();
+    }
+
+    // Print the stats every interval while reports keep changing them
+    public void startReporter(long intervalSeconds) {
+        Thread reporter = new Thread(() -> {
+            String lastStats = "";
+            try {
+                while (true) {
+                    TimeUnit.SECONDS.sleep(intervalSeconds);
+                    String current = stats();
+                    if (!current.equals(lastStats)) {
+                        AsyncLogger.INFO.log("Estimator stats: {}", current);
+                        lastStats = current;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stop reporting
+            }
+        }, "cost-estimator-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    // Server side: completed requests per bucket since the last report
+    public static class Samples {
+        private final Map<String, double[]> pending = new TreeMap<>();
+
+        public synchronized void record(String requestType, int durationSeconds, long elapsedMillis) {
+            double[] sums = pending.computeIfAbsent(key(requestType, durationSeconds), k -> new double[2]);
+            sums[0]++;
+            sums[1] += (double) elapsedMillis / Math.max(1, durationSeconds);
+        }
+
+        // " cost=TYPE/bucket:count:unitMillis,..." for the load report, empty when nothing
+        // completed; starts the next interval
+        public synchronized String drain() {
+            if (pending.isEmpty()) return "";
+            StringBuilder report = new StringBuilder(" cost=");
+            for (Map.Entry<String, double[]> entry : pending.entrySet()) {
+                double[] sums = entry.getValue();
+                if (report.length() > 6) report.append(',');
+                report.append(entry.getKey()).append(':').append((long) sums[0]).append(':')
+                      .append(Math.round(sums[1] / sums[0]));
+            }
+            pending.clear();
+            return report.toString();
+        }
+    }
+}
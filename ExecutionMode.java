@@ -0,0 +1,118 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// How Server and the blocking LoadBalancer front end run their per-connection handlers,
+// chosen with -exec:
+//   platform   a new platform thread per connection (the original behaviour)
+//   pool:<n>   n platform threads, further connections wait in the queue
+//   virtual    a virtual thread per connection; needs Java 21, falls back to platform
+// Also tracks concurrent sessions and reports them with the process's thread count and heap.
+public class ExecutionMode {
+    private final String name;
+    private final String threadPrefix;
+    private final ExecutorService executor;
+    private final AtomicInteger threadIds = new AtomicInteger(0);
+
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong started = new AtomicLong(0);
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger peakActive = new AtomicInteger(0);
+
+    private ExecutionMode(String name, String threadPrefix, ExecutorService executor) {
+        this.name = name;
+        this.threadPrefix = threadPrefix;
+        this.executor = executor;
+    }
+
+    public static ExecutionMode parse(String spec, String threadPrefix) {
+        if (spec.startsWith("pool:")) {
+            int threads = Math.max(1, Integer.parseInt(spec.substring(5)));
+            AtomicInteger ids = new AtomicInteger(0);
+            ThreadFactory factory = r -> new Thread(r, threadPrefix + "-" + ids.getAndIncrement());
+            return new ExecutionMode(spec, threadPrefix, Executors.newFixedThreadPool(threads, factory));
+        }
+        if (spec.equals("virtual")) {
+            ExecutorService virtual = newVirtualExecutor();
+            if (virtual != null) {
+                return new ExecutionMode(spec, threadPrefix, virtual);
+            }
+            AsyncLogger.WARN.log("Virtual threads need Java 21+ (running {}), using platform threads",
+                                 System.getProperty("java.version"));
+        } else if (!spec.equals("platform")) {
+            AsyncLogger.WARN.log("Unknown execution mode {}, using platform threads", spec);
+        }
+        return new ExecutionMode("platform", threadPrefix, null);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() through reflection, so this still compiles
+    // and runs on older JDKs; null when virtual threads are unavailable
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void execute(Runnable handler) {
+        submitted.incrementAndGet();
+        Runnable session = () -> {
+            started.incrementAndGet();
+            peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                handler.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        };
+
+        if (executor != null) {
+            executor.execute(session);
+        } else {
+            new Thread(session, threadPrefix + "-" + threadIds.getAndIncrement()).start();
+        }
+    }
+
+    // One line summary: sessions now/peak, connections still queued, live and peak threads, heap
+    public String stats() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return String.format("exec=%s sessions=%d peak=%d queued=%d threads=%d peakThreads=%d heap=%dMB/%dMB",
+            name, active.get(), peakActive.get(), submitted.get() - started.get(),
+            threads.getThreadCount(), threads.getPeakThreadCount(),
+            heap.getUsed() >> 20, heap.getCommitted() >> 20);
+    }
+
+    // Print stats every interval while sessions are coming and going
+    public void startReporter(long intervalSeconds) {
+        Thread reporter = new Thread(() -> {
+            long lastSubmitted = -1;
+            int lastActive = -1;
+            try {
+                while (true) {
+                    TimeUnit.SECONDS.sleep(intervalSeconds);
+                    if (submitted.get() != lastSubmitted || active.get() != lastActive) {
+                        lastSubmitted = submitted.get();
+                        lastActive = active.get();
+                        AsyncLogger.INFO.log("Execution stats: {}", stats());
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stop reporting
+            }
+        }, threadPrefix + "-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free latency histogram with log-linear buckets: every power of two is split into 16
+// linear sub-buckets, so a reported value is within ~3% of the recorded ones at any scale, from
+// nanoseconds to hours, in 656 counters. Recording is one array increment plus a sum add on
+// the caller's stripe; threads are spread over a few stripes so concurrent handlers do not all
+// hit the same cache lines. Reads add the stripes up and are only as consistent as a scrape
+// needs to be.
+public class LatencyHistogram {
+    static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Values are clamped below 2^MAX_EXPONENT ns (about 4.9 hours)
+    static final int MAX_EXPONENT = 44;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+    static final int STRIPES = Integer.highestOneBit(Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors())) * 2 - 1);
+    // One sum and one max per stripe, each on its own cache line
+    private static final int PAD = 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final AtomicLongArray sums = new AtomicLongArray(STRIPES * PAD);
+    private final AtomicLongArray maxima = new AtomicLongArray(STRIPES * PAD);
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) Math.max(0, nanos);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    // Middle of the bucket, what percentiles report
+    static long midpoint(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return lowerBound(bucket) + (1L << (exponent - SUB_BITS)) / 2;
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    public void record(long nanos) {
+        int stripe = stripe();
+        counts.incrementAndGet(stripe * BUCKETS + bucket(nanos));
+        sums.addAndGet(stripe * PAD, nanos);
+        int maxIndex = stripe * PAD;
+        long max;
+        while (nanos > (max = maxima.get(maxIndex)) && !maxima.compareAndSet(maxIndex, max, nanos)) {
+            // Lost to a larger or concurrent value, read again
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int base = stripe * BUCKETS;
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = counts.get(base + i);
+                buckets[i] += c;
+                count += c;
+            }
+        }
+        long sum = 0;
+        long max = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += sums.get(stripe * PAD);
+            max = Math.max(max, maxima.get(stripe * PAD));
+        }
+        return new Snapshot(buckets, count, sum, max);
+    }
+
+    public static class Snapshot {
+        private final long[] buckets;
+        public final long count;
+        public final long sumNanos;
+        public final long maxNanos;
+
+        Snapshot(long[] buckets, long count, long sumNanos, long maxNanos) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        // Nanoseconds at quantile q (0.5, 0.99, ...), 0 when nothing was recorded
+        public long percentile(double q) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) return Math.min(midpoint(i), maxNanos);
+            }
+            return maxNanos;
+        }
+
+        public long meanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        // Percentile distribution in HdrHistogram's text format, which its plotter reads (.hgrm
+        // files): one row per occupied bucket, values divided by unit (1e6 for milliseconds)
+        public void writeDistribution(Appendable out, double unit) throws IOException {
+            out.append(String.format(Locale.ROOT, "%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+            double mean = count == 0 ? 0 : (double) sumNanos / count;
+            double squares = 0;
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] == 0) continue;
+                long value = Math.min(midpoint(i), maxNanos);
+                squares += (value - mean) * (value - mean) * buckets[i];
+                seen += buckets[i];
+                double q = (double) seen / count;
+                if (seen < count) {
+                    out.append(String.format(Locale.ROOT, "%12.3f %2.12f %10d %14.2f%n", value / unit, q, seen, 1 / (1 - q)));
+                } else {
+                    out.append(String.format(Locale.ROOT, "%12.3f %2.12f %10d%n", value / unit, q, seen));
+                }
+            }
+            double deviation = count == 0 ? 0 : Math.sqrt(squares / count);
+            out.append(String.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean / unit, deviation / unit));
+            out.append(String.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]%n", maxNanos / unit, count));
+            out.append(String.format(Locale.ROOT, "#[Buckets = %12d, SubBuckets     = %12d]%n", BUCKETS, SUB_BUCKETS));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Client-side routing from a load balancer lease (LEASE version=<v> ttl=<ms> <port>:<weight>:<load> ...).
+// Picks servers locally with power of two choices on the leased loads plus this client's own
+// picks, and refreshes the lease in the background before it expires, so the load balancer
+// is off the per-request path.
+public class LeaseCache implements Closeable {
+    private final LookupClient lb;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "lease-refresher");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile Lease lease;
+
+    private static class Lease {
+        final long version;
+        final long expiresAt;
+        final int[] ports;
+        final int[] weights;
+        final int[] loads;
+        // Picks made by this client since the lease was issued
+        final AtomicInteger[] picks;
+
+        Lease(long version, long expiresAt, int[] ports, int[] weights, int[] loads) {
+            this.version = version;
+            this.expiresAt = expiresAt;
+            this.ports = ports;
+            this.weights = weights;
+            this.loads = loads;
+            this.picks = new AtomicInteger[ports.length];
+            for (int i = 0; i < ports.length; i++) {
+                picks[i] = new AtomicInteger();
+            }
+        }
+    }
+
+    public LeaseCache(LookupClient lb) {
+        this.lb = lb;
+    }
+
+    // Fetch the first lease; returns false when the load balancer has leases disabled
+    public boolean start() throws IOException {
+        long ttl = refresh();
+        if (ttl <= 0) return false;
+        scheduleRefresh(ttl * 3 / 4);
+        return true;
+    }
+
+    // Returns a server port from the current lease, or -1 if there is no valid lease
+    public int pickPort() {
+        Lease current = lease;
+        if (current == null || current.ports.length == 0 || System.currentTimeMillis() > current.expiresAt) {
+            return -1;
+        }
+
+        int n = current.ports.length;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int best = random.nextInt(n);
+        if (n > 1) {
+            int other = (best + 1 + random.nextInt(n - 1)) % n;
+            if (score(current, other) < score(current, best)) best = other;
+        }
+        current.picks[best].incrementAndGet();
+        return current.ports[best];
+    }
+
+    public long version() {
+        Lease current = lease;
+        return current != null ? current.version : -1;
+    }
+
+    private static double score(Lease lease, int i) {
+        return (lease.loads[i] + lease.picks[i].get() + 1) * 100.0 / lease.weights[i];
+    }
+
+    // Returns the lease TTL, or 0 when no lease was handed out
+    private long refresh() throws IOException {
+        String reply = lb.lease();
+        if (!reply.startsWith("LEASE")) return 0;
+
+        String[] parts = reply.split(" ");
+        long version = Long.parseLong(parts[1].substring("version=".length()));
+        long ttl = Long.parseLong(parts[2].substring("ttl=".length()));
+        int n = parts.length - 3;
+        int[] ports = new int[n];
+        int[] weights = new int[n];
+        int[] loads = new int[n];
+        for (int i = 0; i < n; i++) {
+            String[] entry = parts[i + 3].split(":");
+            ports[i] = Integer.parseInt(entry[0]);
+            weights[i] = Math.max(1, Integer.parseInt(entry[1]));
+            loads[i] = Integer.parseInt(entry[2]);
+        }
+        lease = new Lease(version, System.currentTimeMillis() + ttl, ports, weights, loads);
+        return ttl;
+    }
+
+    private void scheduleRefresh(long delay) {
+        refresher.schedule(() -> {
+            long next;
+            try {
+                long ttl = refresh();
+                next = ttl > 0 ? ttl * 3 / 4 : 1000;
+            } catch (IOException | RuntimeException e) {
+                // Keep routing on the old lease until it expires, retry sooner
+                AsyncLogger.WARN.log("Lease refresh failed: {}", e.getMessage());
+                next = Math.max(100, delay / 3);
+            }
+            scheduleRefresh(next);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        refresher.shutdownNow();
+    }
+}
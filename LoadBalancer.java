@@ -1,14 +1,30 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class LoadBalancer {
-    private static List<Socket> servers = Collections.synchronizedList(new ArrayList<>());
-    private static Map<Socket, Integer> serverLoads = new ConcurrentHashMap<>();
-    private static Map<Socket, Integer> serverPorts = new ConcurrentHashMap<>();
-    private static Map<Socket, Long> serverLastHeartbeat = new ConcurrentHashMap<>();
-    private static Map<Socket, String> serverBalancingMethod = new ConcurrentHashMap<>();
+    // Copy-on-write snapshot of registered servers: routing reads it without locks,
+    // only join and cleanup take registryLock to publish a new array
+    private static volatile Backend[] backends = new Backend[0];
+    private static final Object registryLock = new Object();
+    // Bumped whenever a server joins or leaves, lets lease holders notice membership changes
+    private static volatile long registryVersion = 0;
+    // Only kept while least-load-indexed routes some requests (see setStrategies), its heap
+    // lock stays off the assignment path otherwise
+    private static final LoadIndex loadIndex = new LoadIndex();
+    private static volatile boolean indexLoads = false;
+    // Consistent hash ring over the same snapshot, rebuilt with it, for the affinity strategy
+    private static volatile ConsistentHashRing ring = ConsistentHashRing.build(new Backend[0]);
     
     // Request type constants
     private static final String DIRECTORY = "DIRECTORY";
@@ -16,8 +32,80 @@ public class LoadBalancer {
     private static final String COMPUTATION = "COMPUTATION";
     private static final String VIDEO_STREAMING = "VIDEO_STREAMING";
     
+    // Routing strategy names, selectable per request class at startup
+    static final String ROUND_ROBIN = "round-robin";
+    static final String LEAST_LOAD = "least-load";
+    static final String LEAST_LOAD_INDEXED = "least-load-indexed";
+    static final String POWER_OF_CHOICES = "p2c";
+    static final String LEAST_WORK = "least-work";
+    static final String AFFINITY = "affinity";
+    private static final List<String> STRATEGIES = Arrays.asList(
+        ROUND_ROBIN, LEAST_LOAD, LEAST_LOAD_INDEXED, POWER_OF_CHOICES, LEAST_WORK, AFFINITY);
+    // Routing key hash of requests without one (only FILE_TRANSFER carries a key, its filename)
+    static final long NO_KEY = 0;
+
+    // Heavy requests (COMPUTATION, VIDEO_STREAMING) and light requests use separate strategies
+    static String heavyStrategy = LEAST_LOAD;
+    static String lightStrategy = ROUND_ROBIN;
+    static int choices = 2;
+    // Affinity spills a key to the next server on the ring once its owner carries more than
+    // this multiple of the average load (-bound)
+    static double affinityBound = 1.25;
+    // Lifetime of routing leases handed to clients (-lease <ms>), 0 disables leases
+    static long leaseTtl = 0;
+    // A server reporting a full bulkhead is passed over for that request type until its next
+    // load report (every 5s) says otherwise, or this long without one
+    static final long BUSY_HOLD_MILLIS = 6000;
+    // A server reporting at least this much CPU in use (cpu=<percent>) is passed over for
+    // COMPUTATION like a busy one while another server has cores to spare (-cpuBusy, 0 disables)
+    static int cpuBusyPercent = 90;
+    private static final int COMPUTATION_TYPE = WireCodec.typeCode(COMPUTATION);
+    // Other servers a proxied request is offered to after a BUSY reply or a failed connect
+    static final int MAX_PROXY_RETRIES = 2;
+    // Load reports received, printed every STATS_INTERVAL_MILLIS as a rate
+    static final AtomicLong loadReports = new AtomicLong(0);
+    static final long STATS_INTERVAL_MILLIS = 10000;
+    // Series behind the STATS command (see Metrics): routing and proxied latency per request
+    // type, time to the first relayed reply and assignments per backend, and refusals
+    static final Metrics.Family<LatencyHistogram> routeLatency = Metrics.histograms("lb_route_seconds", "type");
+    static final Metrics.Family<LatencyHistogram> proxyLatency = Metrics.histograms("lb_proxy_seconds", "type");
+    static final Metrics.Family<LatencyHistogram> firstByteLatency = Metrics.histograms("lb_proxy_first_byte_seconds", "backend");
+    static final Metrics.Family<LongAdder> assignmentsTotal = Metrics.counters("lb_assignments_total", "backend");
+    static final Metrics.Family<LongAdder> noServerTotal = Metrics.counters("lb_no_server_total", "type");
+    static final Metrics.Family<LongAdder> proxyBusyTotal = Metrics.counters("lb_proxy_busy_total", "type");
+    static final Metrics.Family<LongAdder> ejectionsTotal = Metrics.counters("lb_ejections_total", "backend");
+
+    // Liveness: a server silent for this long (-liveness <ms>) is removed. Each server has one
+    // check on the liveness wheel, rescheduled to its own deadline, instead of a periodic scan;
+    // join sockets also time out reads after the same period.
+    static long livenessMillis = 15000;
+    private static final TimingWheel livenessWheel = new TimingWheel("lb-liveness", 50, TimeUnit.MILLISECONDS, 512);
+    // Outlier ejection: after this many failures in a row (-eject <n>) reported by clients
+    // (FAILED <port> <reason>) or seen by proxied requests, a server leaves routing for
+    // EJECT_BASE_MILLIS, doubling with every ejection up to EJECT_MAX_MILLIS, then ramps back
+    // up over slowStartMillis (-slowStart <ms>). At most half the servers are ejected at once.
+    static int ejectAfter = 3;
+    static long slowStartMillis = 10000;
+    static final long EJECT_BASE_MILLIS = 1000;
+    static final long EJECT_MAX_MILLIS = 30000;
+    private static int ejectedCount = 0; // guarded by registryLock
+    // A proxied request whose first reply line takes longer than this (-slow <ms>) counts as
+    // a failure of its server
+    static long slowMillis = 2000;
+
+    // Outstanding work is only kept while least-work routes some requests (see setStrategies).
+    // Redirected requests release their estimate at the WORK_TICK_MILLIS tick they should be
+    // done in (Backend.addWork), one releaser task on the liveness wheel drains the due ticks.
+    private static volatile boolean trackWork = false;
+    static final long WORK_TICK_MILLIS = 250;
+    static final int WORK_SLOTS = 256;
+
     // Estimated processing times (in seconds)
     private static final Map<String, Integer> REQUEST_ESTIMATES = new HashMap<>();
+    // Longest duration a request is estimated at, however many digits it asks for
+    static final int MAX_ESTIMATE_SECONDS = 86400;
+    // Service times learned from the servers' reports, replace REQUEST_ESTIMATES once observed
+    static final CostEstimator costEstimator = new CostEstimator();
     static {
         REQUEST_ESTIMATES.put(DIRECTORY, 1);
         REQUEST_ESTIMATES.put(FILE_TRANSFER, 5);
@@ -25,56 +113,192 @@ public class LoadBalancer {
         REQUEST_ESTIMATES.put(VIDEO_STREAMING, 30);
     }
 
+    // Front end selection: "blocking" (thread per connection) or "nio" (selector event loops)
+    private static String frontEnd = "blocking";
+    private static int eventLoops = 1;
+    // Threads behind the blocking front end (-exec platform|pool:<n>|virtual). Joined servers and
+    // keep-alive clients hold their thread for the whole connection, so size pools accordingly.
+    private static String executionMode = "platform";
+    // Other load balancers on this host to share joined servers with (-peers, see PeerSync)
+    private static int[] peerPorts = new int[0];
+    // Registry kept in a memory-mapped file across restarts (-snapshot <file>), null without
+    private static RegistrySnapshot registrySnapshot;
+    static final long SNAPSHOT_INTERVAL_MILLIS = 1000;
+    static final int PROBE_TIMEOUT_MILLIS = 500;
+
     public static void main(String[] args) throws IOException {
-        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9001;
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Load Balancer started on port " + port);
+        int port = args.length > 0 && !args[0].startsWith("-") ? Integer.parseInt(args[0]) : 9001;
+        // Console logging: -log <debug|request|info|warn|error|off>, -logSample <n> keeps one
+        // in n per-request lines
+        String logLevel = "request";
+        int logSample = 1;
+        String snapshotFile = null;
 
-        // Start health monitoring thread
-        new Thread(() -> monitorServerHealth()).start();
+        String heavy = heavyStrategy;
+        String light = lightStrategy;
+
+        // Parse command line arguments
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-mode") && i + 1 < args.length) {
+                frontEnd = args[i + 1];
+            } else if (args[i].equals("-loops") && i + 1 < args.length) {
+                eventLoops = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-heavy") && i + 1 < args.length) {
+                heavy = parseStrategy(args[i + 1], heavy);
+            } else if (args[i].equals("-light") && i + 1 < args.length) {
+                light = parseStrategy(args[i + 1], light);
+            } else if (args[i].equals("-choices") && i + 1 < args.length) {
+                choices = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("-lease") && i + 1 < args.length) {
+                leaseTtl = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("-exec") && i + 1 < args.length) {
+                executionMode = args[i + 1];
+            } else if (args[i].equals("-bound") && i + 1 < args.length) {
+                affinityBound = Math.max(1.0, Double.parseDouble(args[i + 1]));
+            } else if (args[i].equals("-liveness") && i + 1 < args.length) {
+                livenessMillis = Math.max(100, Long.parseLong(args[i + 1]));
+            } else if (args[i].equals("-eject") && i + 1 < args.length) {
+                ejectAfter = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("-slow") && i + 1 < args.length) {
+                slowMillis = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("-cpuBusy") && i + 1 < args.length) {
+                cpuBusyPercent = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-slowStart") && i + 1 < args.length) {
+                slowStartMillis = Math.max(1, Long.parseLong(args[i + 1]));
+            } else if (args[i].equals("-peers") && i + 1 < args.length) {
+                peerPorts = parsePorts(args[i + 1]);
+            } else if (args[i].equals("-snapshot") && i + 1 < args.length) {
+                snapshotFile = args[i + 1];
+            } else if (args[i].equals("-log") && i + 1 < args.length) {
+                logLevel = args[i + 1];
+            } else if (args[i].equals("-logSample") && i + 1 < args.length) {
+                logSample = Integer.parseInt(args[i + 1]);
+            }
+        }
+        AsyncLogger.configure(logLevel, logSample);
+        setStrategies(heavy, light);
+        AsyncLogger.INFO.log("Routing: heavy requests {}, light requests {}", heavyStrategy, lightStrategy);
+
+        livenessWheel.schedule(LoadBalancer::printReportStats, STATS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        livenessWheel.schedule(LoadBalancer::releaseWork, WORK_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        costEstimator.startReporter(10);
+        if (snapshotFile != null) {
+            registrySnapshot = new RegistrySnapshot(Paths.get(snapshotFile));
+            restoreRegistry();
+            livenessWheel.schedule(LoadBalancer::saveRegistry, SNAPSHOT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            // A graceful stop leaves the registry as of the stop, not as of the last second
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> registrySnapshot.write(backends, costEstimator)));
+        }
+        PeerSync.start(port, peerPorts);
+
+        if (frontEnd.equals("nio")) {
+            int loops = eventLoops > 0 ? eventLoops : Runtime.getRuntime().availableProcessors();
+            AsyncLogger.INFO.log("Load Balancer started on port {} (nio, {} event loops)", port, loops);
+            NioFrontEnd.start(port, loops);
+            return;
+        }
+
+        // Channel-backed sockets, so proxied connections can be handed to a ProxyRelay
+        ExecutionMode execution = ExecutionMode.parse(executionMode, "lb-connection");
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        AsyncLogger.INFO.log("Load Balancer started on port {} ({} threads)", port, execution.name());
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
-                serverSocket.close();
+                serverChannel.close();
             } catch (IOException e) {
                 System.err.println("Error closing server socket: " + e.getMessage());
             }
         }));
 
+        execution.startReporter(10);
         while (true) {
-            Socket socket = serverSocket.accept();
-            new Thread(() -> handleConnection(socket)).start();
+            Socket socket = serverChannel.accept().socket();
+            execution.execute(() -> handleConnection(socket));
+        }
+    }
+
+    // "9002,9003" into ports of other load balancers on this host
+    private static int[] parsePorts(String list) {
+        String[] parts = list.split(",");
+        int[] ports = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ports[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ports;
+    }
+
+    // Switch strategies, keeping only the bookkeeping the configured strategies read
+    static void setStrategies(String heavy, String light) {
+        synchronized (registryLock) {
+            heavyStrategy = heavy;
+            lightStrategy = light;
+            boolean work = heavy.equals(LEAST_WORK) || light.equals(LEAST_WORK);
+            if (!work) {
+                for (Backend b : backends) {
+                    b.clearWork();
+                }
+            }
+            trackWork = work;
+
+            boolean index = heavy.equals(LEAST_LOAD_INDEXED) || light.equals(LEAST_LOAD_INDEXED);
+            if (index != indexLoads) {
+                indexLoads = index;
+                for (Backend b : backends) {
+                    if (index) {
+                        loadIndex.add(b);
+                    } else {
+                        loadIndex.remove(b);
+                    }
+                }
+            }
         }
     }
 
+    private static String parseStrategy(String name, String fallback) {
+        if (STRATEGIES.contains(name)) return name;
+        AsyncLogger.WARN.log("Unknown strategy {}, using {} (available: {})", name, fallback, STRATEGIES);
+        return fallback;
+    }
+
     private static void handleConnection(Socket socket) {
+        Backend backend = null;
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            ConnectionInput raw = new ConnectionInput(socket.getInputStream());
+            raw.mark(1);
+            if (raw.read() == (WireCodec.MAGIC & 0xFF)) {
+                handleBinaryLookups(raw, socket.getOutputStream());
+                return;
+            }
+            raw.reset();
+
+            // A PROXY request is relayed as raw bytes, so it is read off the byte stream: a
+            // Reader would decode (and buffer) the bytes following its line
+            if (startsWith(raw, "PROXY")) {
+                String message = readLine(raw);
+                // Forward what was already read off the socket after the PROXY line along with
+                // it, the relay reads the rest from the socket itself
+                byte[] extra = raw.readNBytes(raw.buffered());
+                ProxyRelay relay = openProxy(socket.getChannel(), message, ByteBuffer.wrap(extra));
+                if (relay != null) {
+                    relay.runBlocking();
+                } else {
+                    OutputStream out = socket.getOutputStream();
+                    out.write("NO_SERVER_AVAILABLE\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+                return;
+            }
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(raw));
             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
             String message = in.readLine();
 
             if (message != null && message.startsWith("join")) {
-                // Handle server registration with balancing method
-                String[] parts = message.split(" ");
-                String balancingMethod = "dynamic"; // default
-                int port = 7000; // default
-                
-                for (int i = 1; i < parts.length; i++) {
-                    if (parts[i].equals("-v") && i + 1 < parts.length) {
-                        balancingMethod = parts[i + 1];
-                    } else if (parts[i].startsWith("port=")) {
-                        port = Integer.parseInt(parts[i].substring(5));
-                    }
-                }
-
-                synchronized (servers) {
-                    servers.add(socket);
-                    serverLoads.put(socket, 0);
-                    serverLastHeartbeat.put(socket, System.currentTimeMillis());
-                    serverPorts.put(socket, port);
-                    serverBalancingMethod.put(socket, balancingMethod);
-                    System.out.println("Server joined on port " + port + " with " + balancingMethod + " balancing");
-                }
+                backend = registerServer(socket, message);
+                // A server that stops sending without closing the connection frees this thread too
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, livenessMillis));
 
                 out.write("join_accepted\n");
                 out.flush();
@@ -83,194 +307,930 @@ public class LoadBalancer {
                 while (true) {
                     String updateMessage = in.readLine();
                     if (updateMessage == null) break;
+                    if (!handleServerUpdate(backend, updateMessage)) break;
+                }
 
-                    if (updateMessage.toLowerCase().startsWith("load=")) {
-                        try {
-                            int load = Integer.parseInt(updateMessage.substring(5).trim());
-                            serverLoads.put(socket, load);
-                            serverLastHeartbeat.put(socket, System.currentTimeMillis());
-                            System.out.println("Updated load for port " + serverPorts.get(socket) + ": " + load);
-                        } catch (NumberFormatException e) {
-                            System.out.println("Invalid load value from: " + socket);
-                        }
-                    } else if (updateMessage.equals("goodbye")) {
-                        System.out.println("Server on port " + serverPorts.get(socket) + " said goodbye");
-                        break;
+            } else if (message != null && message.startsWith("peer ")) {
+                // Another load balancer replicating its servers, until it disconnects
+                PeerSync.Inbound peer = new PeerSync.Inbound(
+                    socket.getInetAddress().getHostAddress() + ":" + message.substring(5).trim());
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, livenessMillis));
+                out.write("peer_accepted\n");
+                out.flush();
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        peer.apply(line);
                     }
+                } finally {
+                    peer.close();
                 }
 
-            } else if (message != null && message.startsWith("REQUEST")) {
-                // Handle client request: REQUEST <type> [parameters]
-                String[] parts = message.split(" ");
-                String requestType = parts.length > 1 ? parts[1] : DIRECTORY;
-                String parameters = parts.length > 2 ? String.join(" ", Arrays.copyOfRange(parts, 2, parts.length)) : "";
-                
-                int estimatedTime = estimateRequestTime(requestType, parameters);
-                Socket selected = selectServer(requestType, estimatedTime);
-                
-                if (selected != null) {
-                    int port = serverPorts.getOrDefault(selected, 7000);
-                    out.write("SERVER_PORT " + port + "\n");
-                    System.out.println("Assigned " + requestType + " request to server on port: " + port + 
-                                     " (estimated time: " + estimatedTime + "s)");
-                } else {
-                    out.write("NO_SERVER_AVAILABLE\n");
-                    System.out.println("No servers available for " + requestType + " request");
+            } else if (message != null && isLookup(message)) {
+                // Keep-alive: answer lookups in order until the client closes, flushing
+                // once per pipelined batch instead of once per reply
+                while (message != null) {
+                    out.write(handleLookup(message));
+                    if (!in.ready()) out.flush();
+                    message = in.readLine();
                 }
                 out.flush();
-                socket.close();
             }
 
-        } catch (IOException e) {
-            System.out.println("Connection closed: " + e.getMessage());
+        } catch (SocketTimeoutException e) {
+            if (backend != null && cleanupServer(backend)) {
+                AsyncLogger.INFO.log("Removed dead server on port: {} (no report for {}ms)", backend.port, livenessMillis);
+            }
+        } catch (IOException | RuntimeException e) {
+            AsyncLogger.WARN.log("Connection closed: {}", e.getMessage());
         } finally {
-            cleanupServer(socket);
+            if (backend != null) {
+                cleanupServer(backend);
+            } else {
+                try { socket.close(); } catch (IOException e) {}
+            }
         }
     }
 
-    // Estimate request processing time based on type and parameters
-    private static int estimateRequestTime(String requestType, String parameters) {
-        int baseTime = REQUEST_ESTIMATES.getOrDefault(requestType, 5);
-        
-        if (requestType.equals(COMPUTATION) && !parameters.isEmpty()) {
-            try {
-                // Extract duration from computation request
-                String[] parts = parameters.split(" ");
-                for (String part : parts) {
-                    if (part.endsWith("s") || part.endsWith("sec")) {
-                        return Integer.parseInt(part.replaceAll("[^0-9]", ""));
+    // A connection's buffered input that can tell how much it has read ahead of the caller
+    private static class ConnectionInput extends BufferedInputStream {
+        ConnectionInput(InputStream in) {
+            super(in);
+        }
+
+        synchronized int buffered() {
+            return count - pos;
+        }
+    }
+
+    // Whether the stream starts with prefix, consuming nothing; stops reading at the first
+    // byte that differs, so a shorter message is never waited on
+    private static boolean startsWith(InputStream in, String prefix) throws IOException {
+        in.mark(prefix.length());
+        try {
+            for (int i = 0; i < prefix.length(); i++) {
+                if (in.read() != prefix.charAt(i)) return false;
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    // One "\n" or "\r\n" terminated line read byte by byte, without the terminator
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (line.length() >= NioFrontEnd.MAX_LINE) throw new IOException("Line too long");
+            line.append((char) b);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+        return line.toString();
+    }
+
+    // Binary lookup connection (see WireCodec): acknowledge with MAGIC, then answer
+    // REQUEST frames in order, reusing one frame buffer and one reply buffer throughout
+    private static void handleBinaryLookups(InputStream in, OutputStream out) throws IOException {
+        byte[] body = new byte[WireCodec.MAX_FRAME];
+        WireCodec.Message message = new WireCodec.Message();
+        ByteBuffer reply = ByteBuffer.allocate(8 * 1024);
+
+        reply.put(WireCodec.MAGIC);
+        while (true) {
+            if (reply.position() > 0 && in.available() == 0) {
+                out.write(reply.array(), 0, reply.position());
+                out.flush();
+                reply.clear();
+            }
+            if (!WireCodec.readFrame(in, body, message)) break;
+            if (reply.remaining() < WireCodec.MAX_FRAME) {
+                out.write(reply.array(), 0, reply.position());
+                reply.clear();
+            }
+            routeBinary(message, reply);
+        }
+    }
+
+    // Handle server registration: join [-v <method>] [port=<port>]
+    static Backend registerServer(Socket socket, String message) {
+        String[] parts = message.split(" ");
+        String balancingMethod = "dynamic"; // default
+        int port = 7000; // default
+
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equals("-v") && i + 1 < parts.length) {
+                balancingMethod = parts[i + 1];
+            } else if (parts[i].startsWith("port=")) {
+                port = Integer.parseInt(parts[i].substring(5));
+            }
+        }
+
+        // A server joins again after losing its connection, or after this LB restarted: its
+        // restored or stale entry goes, routing continues on the new one
+        Backend previous = findLocal(port);
+        if (previous != null && cleanupServer(previous)) {
+            AsyncLogger.INFO.log("Server on port {} rejoined{}", port, previous.restored() ? " (was restored)" : "");
+        }
+
+        Backend backend = new Backend(socket, port, balancingMethod);
+        synchronized (registryLock) {
+            addRoutable(backend);
+        }
+        scheduleLivenessCheck(backend, livenessMillis);
+        PeerSync.publishUp(backend);
+        AsyncLogger.INFO.log("Server joined on port {} with {} balancing", port, balancingMethod);
+        return backend;
+    }
+
+    // Routable server on the port that is not a peer's
+    private static Backend findLocal(int port) {
+        for (Backend b : backends) {
+            if (b.port == port && b.owner == null) return b;
+        }
+        return null;
+    }
+
+    // Route to the servers of the registry snapshot until they rejoin. Each is probed once and
+    // dropped when nothing listens on its port; the liveness check removes the ones that have
+    // not rejoined within livenessMillis.
+    private static void restoreRegistry() {
+        List<Backend> restored = new ArrayList<>();
+        for (RegistrySnapshot.Entry entry : registrySnapshot.restore(costEstimator)) {
+            Backend backend = new Backend(entry.host, entry.port, entry.balancingMethod);
+            backend.load.set(entry.load);
+            backend.reportedLoad = entry.load;
+            synchronized (registryLock) {
+                addRoutable(backend);
+            }
+            scheduleLivenessCheck(backend, livenessMillis);
+            restored.add(backend);
+        }
+        if (restored.isEmpty()) return;
+        AsyncLogger.INFO.log("Routing to {} restored servers until they rejoin", restored.size());
+
+        Thread prober = new Thread(() -> {
+            for (Backend backend : restored) {
+                if (backend.removed) continue;
+                try (Socket probe = new Socket()) {
+                    probe.connect(backend.address(), PROBE_TIMEOUT_MILLIS);
+                } catch (IOException e) {
+                    if (cleanupServer(backend)) {
+                        AsyncLogger.INFO.log("Dropped restored server on port {} ({})", backend.port, e.getMessage());
                     }
                 }
-            } catch (NumberFormatException e) {
-                // Use default if parsing fails
             }
-        } else if (requestType.equals(VIDEO_STREAMING) && !parameters.isEmpty()) {
+        }, "lb-registry-probe");
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    private static void saveRegistry() {
+        registrySnapshot.write(backends, costEstimator);
+        livenessWheel.schedule(LoadBalancer::saveRegistry, SNAPSHOT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Route to a server that joined the peer LB owner; its liveness is the owner's to judge.
+    // Null when the server is registered here itself.
+    static Backend registerMirror(String owner, InetAddress host, int port, String balancingMethod) {
+        if (PeerSync.isLocal(port)) return null;
+        // The server moved to the peer while this LB was down
+        Backend previous = findLocal(port);
+        if (previous != null && previous.restored()) {
+            cleanupServer(previous);
+        }
+        Backend backend = new Backend(owner, host, port, balancingMethod);
+        synchronized (registryLock) {
+            addRoutable(backend);
+        }
+        AsyncLogger.INFO.log("Server on port {} joined peer {}", port, owner);
+        return backend;
+    }
+
+    // Put a server into the routing table (backends, ring, load index); caller holds registryLock
+    private static void addRoutable(Backend backend) {
+        Backend[] current = backends;
+        Backend[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = backend;
+        backends = updated;
+        ring = ConsistentHashRing.build(updated);
+        registryVersion++;
+        if (indexLoads) loadIndex.add(backend);
+    }
+
+    // Take a server out of the routing table; caller holds registryLock
+    private static void removeRoutable(Backend backend) {
+        Backend[] current = backends;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == backend) {
+                Backend[] updated = new Backend[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                backends = updated;
+                ring = ConsistentHashRing.build(updated);
+                registryVersion++;
+                break;
+            }
+        }
+        loadIndex.remove(backend);
+    }
+
+    private static void scheduleLivenessCheck(Backend backend, long delayMillis) {
+        livenessWheel.schedule(() -> checkLiveness(backend), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the liveness wheel when the server's deadline may have passed: remove it if it
+    // has been silent for the whole period, otherwise check again at its new deadline
+    private static void checkLiveness(Backend backend) {
+        if (backend.removed) return;
+        long silent = System.currentTimeMillis() - backend.lastHeartbeat;
+        if (silent >= livenessMillis) {
+            if (cleanupServer(backend)) {
+                AsyncLogger.INFO.log("Removed dead server on port: {} (silent for {}ms)", backend.port, silent);
+            }
+        } else {
+            scheduleLivenessCheck(backend, livenessMillis - silent);
+        }
+    }
+
+    private static void printReportStats() {
+        long reports = loadReports.getAndSet(0);
+        if (reports > 0) {
+            AsyncLogger.INFO.log("Report stats: {} load reports/s from {} servers",
+                String.format("%.1f", reports * 1000.0 / STATS_INTERVAL_MILLIS), backends.length);
+        }
+        livenessWheel.schedule(LoadBalancer::printReportStats, STATS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // A client or proxied request could not use the server (connect failure, no timely reply)
+    static void reportFailure(Backend backend, String reason) {
+        int failures = backend.consecutiveFailures.incrementAndGet();
+        if (failures >= ejectAfter) {
+            eject(backend, failures, reason);
+        }
+    }
+
+    static void reportSuccess(Backend backend) {
+        if (backend.consecutiveFailures.get() != 0) {
+            backend.consecutiveFailures.set(0);
+        }
+    }
+
+    private static void eject(Backend backend, int failures, String reason) {
+        long duration = takeOut(backend, 0);
+        if (duration == 0) return;
+        AsyncLogger.WARN.log("Ejected server on port {} after {} failures ({}), readmitting in {}ms",
+                             backend.port, failures, reason, duration);
+        // Clients report failures to one LB only, the peers routing to the server follow it
+        PeerSync.publishEject(backend, duration, reason);
+    }
+
+    // An ejection a peer LB decided on: the server leaves this LB's routing for as long too
+    static void ejectFromPeer(String peer, int port, long duration) {
+        for (Backend b : backends) {
+            if (b.port == port) {
+                if (takeOut(b, duration) != 0) {
+                    AsyncLogger.WARN.log("Peer {} ejected server on port {}, readmitting in {}ms", peer, port, duration);
+                }
+                return;
+            }
+        }
+    }
+
+    // Take the server out of routing until readmit, for duration or, when 0, by its ejections
+    // so far. Returns the duration, 0 when the server stays.
+    private static long takeOut(Backend backend, long duration) {
+        synchronized (registryLock) {
+            if (backend.ejected || backend.removed) return 0;
+            // Keep at least half the servers: when everything fails, the fault is rarely theirs
+            if (ejectedCount + 1 > (backends.length + ejectedCount) / 2) return 0;
+            backend.ejected = true;
+            ejectedCount++;
+            if (duration <= 0) {
+                duration = Math.min(EJECT_MAX_MILLIS, EJECT_BASE_MILLIS << Math.min(backend.ejections, 16));
+            }
+            backend.ejections++;
+            removeRoutable(backend);
+        }
+        ejectionsTotal.get(Integer.toString(backend.port)).increment();
+        livenessWheel.schedule(() -> readmit(backend), duration, TimeUnit.MILLISECONDS);
+        return duration;
+    }
+
+    private static void readmit(Backend backend) {
+        synchronized (registryLock) {
+            if (!backend.ejected) return;
+            backend.ejected = false;
+            ejectedCount--;
+            if (backend.removed) return;
+            backend.consecutiveFailures.set(0);
+            backend.slowStartFrom = System.currentTimeMillis();
+            addRoutable(backend);
+        }
+        AsyncLogger.INFO.log("Readmitted server on port {}, slow start over {}ms", backend.port, slowStartMillis);
+    }
+
+    // FAILED <port> [reason] from a client that could not use its assigned server
+    private static String handleFailureReport(String message) {
+        String[] parts = message.split(" ");
+        if (parts.length < 2) return "UNKNOWN_COMMAND\n";
+        int port;
+        try {
+            port = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            return "UNKNOWN_COMMAND\n";
+        }
+        for (Backend b : backends) {
+            if (b.port == port) {
+                reportFailure(b, parts.length > 2 ? parts[2] : "client");
+                break;
+            }
+        }
+        return "OK\n";
+    }
+
+    // Handle a message on a joined server's connection, returns false once the server leaves
+    static boolean handleServerUpdate(Backend backend, String updateMessage) {
+        if (updateMessage.regionMatches(true, 0, "load=", 0, 5)) {
             try {
-                // Extract duration from streaming request
-                String[] parts = parameters.split(" ");
-                for (String part : parts) {
-                    if (part.endsWith("s") || part.endsWith("sec")) {
-                        return Integer.parseInt(part.replaceAll("[^0-9]", ""));
+                // load=<n> [seq=<accepted requests>] [cpu=<percent>] [busy=<type>,<type>] [cost=<bucket costs>],
+                // scanned in place: servers report on every significant change, so this runs often
+                int length = updateMessage.length();
+                int end = tokenEnd(updateMessage, 5);
+                int load = Integer.parseInt(updateMessage, 5, end, 10);
+                long seq = -1;
+                int cpu = 0;
+                String busy = "";
+                for (int start = end + 1; start < length; start = end + 1) {
+                    end = tokenEnd(updateMessage, start);
+                    if (updateMessage.startsWith("seq=", start)) {
+                        seq = Long.parseLong(updateMessage, start + 4, end, 10);
+                    } else if (updateMessage.startsWith("cpu=", start)) {
+                        cpu = Integer.parseInt(updateMessage, start + 4, end, 10);
+                    } else if (updateMessage.startsWith("busy=", start)) {
+                        busy = updateMessage.substring(start + 5, end);
+                    } else if (updateMessage.startsWith("cost=", start)) {
+                        observeCosts(updateMessage.substring(start + 5, end));
                     }
                 }
+                reconcileLoad(backend, load, seq);
+                updateBusy(backend, busy);
+                backend.cpuPercent = cpu;
+                backend.lastHeartbeat = System.currentTimeMillis();
+                loadReports.incrementAndGet();
+                if (backend.owner == null) PeerSync.publishReport(backend, updateMessage);
             } catch (NumberFormatException e) {
-                // Use default if parsing fails
+                AsyncLogger.WARN.log("Invalid load value from server on port {}", backend.port);
             }
+        } else if (updateMessage.startsWith("busy ")) {
+            // Sent as soon as a bulkhead refuses its first request, ahead of the next report
+            String requestType = updateMessage.substring(5).trim();
+            markBusy(backend, requestType);
+            if (backend.owner == null) PeerSync.publishReport(backend, updateMessage);
+            AsyncLogger.INFO.log("Server on port {} is busy for {}", backend.port, requestType);
+        } else if (updateMessage.equals("goodbye")) {
+            AsyncLogger.INFO.log("Server on port {} said goodbye", backend.port);
+            return false;
         }
-        
-        return baseTime;
+        return true;
     }
-    
-    // Select best server based on request type and load balancing method
-    private static Socket selectServer(String requestType, int estimatedTime) {
-        synchronized (servers) {
-            if (servers.isEmpty()) return null;
-            
-            // Try both static and dynamic methods, prefer dynamic for better performance
-            Socket dynamicChoice = selectServerByLeastLoad();
-            Socket staticChoice = selectServerByRoundRobin();
-            
-            // For computation and streaming requests, prefer least loaded server
-            if (requestType.equals(COMPUTATION) || requestType.equals(VIDEO_STREAMING)) {
-                return dynamicChoice;
+
+    private static int tokenEnd(String message, int start) {
+        int end = message.indexOf(' ', start);
+        return end < 0 ? message.length() : end;
+    }
+
+    static void updateLoad(Backend backend, int load) {
+        backend.load.set(load);
+        indexLoad(backend);
+    }
+
+    // Re-key the server in the load index after its load changed
+    private static void indexLoad(Backend backend) {
+        if (indexLoads) loadIndex.update(backend);
+    }
+
+    // A load report lists every type whose bulkhead is full; the others are open again
+    private static void updateBusy(Backend backend, String busy) {
+        long until = busy.isEmpty() ? 0 : System.currentTimeMillis() + BUSY_HOLD_MILLIS;
+        for (int type = 0; type < WireCodec.REQUEST_TYPES.length; type++) {
+            if (!busy.isEmpty() && listsType(busy, WireCodec.REQUEST_TYPES[type])) {
+                backend.busyUntil.set(type, until);
+            } else if (backend.busyUntil.get(type) != 0) {
+                backend.busyUntil.set(type, 0);
             }
-            
-            // For quick requests, round-robin is fine
-            return staticChoice != null ? staticChoice : dynamicChoice;
         }
     }
 
-    // Least Load Algorithm (Dynamic)
-    private static Socket selectServerByLeastLoad() {
-        Socket best = null;
-        int minLoad = Integer.MAX_VALUE;
+    // Whether the comma separated list contains the type
+    private static boolean listsType(String list, String requestType) {
+        for (int start = 0; start < list.length(); ) {
+            int end = list.indexOf(',', start);
+            if (end < 0) end = list.length();
+            if (end - start == requestType.length() && list.startsWith(requestType, start)) return true;
+            start = end + 1;
+        }
+        return false;
+    }
 
-        synchronized (servers) {
-            for (Socket s : servers) {
-                int load = serverLoads.getOrDefault(s, 0);
-                if (load < minLoad) {
-                    minLoad = load;
-                    best = s;
-                }
+    static void markBusy(Backend backend, String requestType) {
+        int type = WireCodec.typeCode(requestType);
+        if (type >= 0) {
+            backend.busyUntil.set(type, System.currentTimeMillis() + BUSY_HOLD_MILLIS);
+        }
+    }
+
+    private static boolean isBusy(Backend backend, int type) {
+        if (type < 0) return false;
+        if (type == COMPUTATION_TYPE && cpuBusyPercent > 0 && backend.cpuPercent >= cpuBusyPercent) return true;
+        long until = backend.busyUntil.get(type);
+        return until != 0 && until > System.currentTimeMillis();
+    }
+
+    // Start a new report epoch: take the server's load as authoritative and keep only the
+    // assignments it has not accepted yet on top of it. Without a seq (older servers) the
+    // optimistic count simply restarts from the reported value.
+    static void reconcileLoad(Backend backend, int reportedLoad, long seq) {
+        long assigned = backend.assigned.get();
+        long pending = 0;
+        if (seq >= 0) {
+            long seen = seq + backend.seqOffset;
+            if (seen < backend.assignedAtLastReport) {
+                // Assigned before the previous report and still not arrived: the client gave up
+                backend.seqOffset += backend.assignedAtLastReport - seen;
+            } else if (seen > assigned) {
+                // Server accepted requests the LB never assigned (direct clients)
+                backend.seqOffset = assigned - seq;
             }
+            pending = Math.max(0, assigned - (seq + backend.seqOffset));
         }
-        return best;
+        backend.reportedLoad = reportedLoad;
+        backend.assignedAtLastReport = assigned;
+        updateLoad(backend, reportedLoad + (int) pending);
     }
 
-    // Round Robin Algorithm (Static)
-    private static int roundRobinIndex = 0;
-    private static Socket selectServerByRoundRobin() {
-        synchronized (servers) {
-            if (servers.isEmpty()) return null;
-            
-            Socket selected = servers.get(roundRobinIndex % servers.size());
-            roundRobinIndex = (roundRobinIndex + 1) % servers.size();
+    // Optimistically count the assignment right away instead of waiting for the next report
+    private static void recordAssignment(Backend backend) {
+        backend.assigned.incrementAndGet();
+        backend.assignmentsTotal.increment();
+        backend.load.incrementAndGet();
+        indexLoad(backend);
+    }
+
+    static boolean isLookup(String message) {
+        return message.startsWith("REQUEST") || message.startsWith("LEASE") || message.startsWith("FAILED") ||
+               message.startsWith("STATS") || message.startsWith("@");
+    }
+
+    // Handle one line on a lookup connection. "@<id> REQUEST ..." is answered with
+    // "@<id> SERVER_PORT ..." so pipelining clients can match replies to requests.
+    static String handleLookup(String message) {
+        String tag = null;
+        if (message.startsWith("@")) {
+            int space = message.indexOf(' ');
+            tag = space > 0 ? message.substring(0, space) : message;
+            message = space > 0 ? message.substring(space + 1) : "";
+        }
+
+        String reply;
+        if (message.startsWith("REQUEST")) {
+            reply = routeRequest(message);
+        } else if (message.startsWith("LEASE")) {
+            reply = leaseReply();
+        } else if (message.startsWith("FAILED")) {
+            reply = handleFailureReport(message);
+        } else if (message.startsWith("STATS")) {
+            reply = statsReply(message);
+        } else {
+            reply = "UNKNOWN_COMMAND\n";
+        }
+        return tag != null ? tag + " " + reply : reply;
+    }
+
+    // STATS [prometheus]: latency percentiles, rates and counters (see Metrics), one series per
+    // line and an END line, since unlike the other replies this one spans several lines
+    static String statsReply(String message) {
+        String stats = message.endsWith("prometheus") ? Metrics.prometheus() : Metrics.text();
+        return stats + "END\n";
+    }
+
+    // Routing lease: a snapshot of the registered servers that a client may route against
+    // locally until the TTL runs out, as LEASE version=<v> ttl=<ms> <port>:<weight>:<load> ...
+    static String leaseReply() {
+        if (leaseTtl <= 0) return "NO_LEASE\n";
+
+        Backend[] pool = backends;
+        StringBuilder lease = new StringBuilder(32 + pool.length * 16);
+        lease.append("LEASE version=").append(registryVersion).append(" ttl=").append(leaseTtl);
+        for (Backend b : pool) {
+            lease.append(' ').append(b.port).append(':').append(b.weight()).append(':').append(b.load.get());
+        }
+        return lease.append('\n').toString();
+    }
+
+    // Handle client request: REQUEST <type> [parameters], returns the reply line
+    static String routeRequest(String message) {
+        String[] parts = message.split(" ");
+        String requestType = parts.length > 1 ? parts[1] : DIRECTORY;
+        String parameters = parts.length > 2 ? String.join(" ", Arrays.copyOfRange(parts, 2, parts.length)) : "";
+
+        long key = requestType.equals(FILE_TRANSFER) && parts.length > 2 ? ConsistentHashRing.hash(parts[2]) : NO_KEY;
+        long estimatedMillis = estimateRequestMillis(requestType, estimateRequestTime(requestType, parameters));
+        Backend selected = assignRequest(requestType, estimatedMillis, key);
+        return selected != null ? "SERVER_PORT " + selected.port + "\n" : "NO_SERVER_AVAILABLE\n";
+    }
+
+    // Handle a binary REQUEST frame, encoding the reply frame into out. The type name comes
+    // from the codec's constant table and the duration is already a number, so nothing is
+    // parsed or allocated on the routing path.
+    static void routeBinary(WireCodec.Message message, ByteBuffer out) throws ProtocolException {
+        if (message.opcode != WireCodec.OP_REQUEST) {
+            throw new ProtocolException("Unexpected opcode " + message.opcode);
+        }
+        String requestType = WireCodec.REQUEST_TYPES[message.type];
+        int estimatedTime = REQUEST_ESTIMATES.get(requestType);
+        if (message.number > 0 && (requestType.equals(COMPUTATION) || requestType.equals(VIDEO_STREAMING))) {
+            estimatedTime = message.number;
+        }
+
+        long key = message.nameLength > 0 ? ConsistentHashRing.hash(message.name, message.nameLength) : NO_KEY;
+        Backend selected = assignRequest(requestType, estimateRequestMillis(requestType, estimatedTime), key);
+        if (selected != null) {
+            WireCodec.encodeServerPort(out, message.tag, selected.port);
+        } else {
+            WireCodec.encodeNoServer(out, message.tag);
+        }
+    }
+
+    // Pick a server for a redirected request and account the assignment, null if none is up
+    private static Backend assignRequest(String requestType, long estimatedMillis, long key) {
+        long started = System.nanoTime();
+        Backend selected = selectServer(requestType, estimatedMillis, key);
+        routeLatency.get(WireCodec.typeLabel(requestType)).record(System.nanoTime() - started);
+
+        if (selected != null) {
+            recordAssignment(selected);
+            if (trackWork) selected.addWork(estimatedMillis, System.currentTimeMillis());
+            AsyncLogger.REQUEST.log("Assigned {} request to server on port: {} (estimated time: {}ms)",
+                                    requestType, selected.port, estimatedMillis);
             return selected;
         }
+        noServerTotal.get(WireCodec.typeLabel(requestType)).increment();
+        AsyncLogger.WARN.log("No servers available for {} request", requestType);
+        return null;
     }
 
-    // Weighted Load Algorithm (considers both load and response time)
-    private static Socket selectServerByWeightedLoad() {
-        Socket best = null;
-        double bestScore = Double.MAX_VALUE;
+    // Release the work of redirected requests that should be done by now, on the liveness wheel.
+    // Ejected servers are skipped and catch up once readmitted.
+    private static void releaseWork() {
+        if (trackWork) {
+            long tick = System.currentTimeMillis() / WORK_TICK_MILLIS;
+            for (Backend b : backends) {
+                b.releaseWork(tick);
+            }
+        }
+        livenessWheel.schedule(LoadBalancer::releaseWork, WORK_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-        synchronized (servers) {
-            for (Socket s : servers) {
-                int load = serverLoads.getOrDefault(s, 0);
-                String method = serverBalancingMethod.getOrDefault(s, "dynamic");
-                
-                // Weight calculation: lower is better
-                double score = load * 1.0;
-                if (method.equals("static")) {
-                    score *= 1.2; // Slightly penalize static servers for dynamic requests
-                }
-                
-                if (score < bestScore) {
-                    bestScore = score;
-                    best = s;
-                }
+    // Handle a proxied client request: PROXY <type> [parameters]. The LB connects to the chosen
+    // server itself and relays the response, so it knows exactly when the request completes.
+    // Returns null when no server is available.
+    static ProxyRelay openProxy(SocketChannel client, String message, ByteBuffer extra) throws IOException {
+        String request = message.length() > 6 ? message.substring(6) : DIRECTORY;
+        String[] parts = request.split(" ");
+        String requestType = parts[0];
+        String parameters = parts.length > 1 ? String.join(" ", Arrays.copyOfRange(parts, 1, parts.length)) : "";
+
+        long estimatedMillis = estimateRequestMillis(requestType, estimateRequestTime(requestType, parameters));
+        long key = requestType.equals(FILE_TRANSFER) && parts.length > 1 ? ConsistentHashRing.hash(parts[1]) : NO_KEY;
+        long started = System.nanoTime();
+        Backend selected = selectServer(requestType, estimatedMillis, key);
+        routeLatency.get(WireCodec.typeLabel(requestType)).record(System.nanoTime() - started);
+        if (selected == null) {
+            noServerTotal.get(WireCodec.typeLabel(requestType)).increment();
+            AsyncLogger.WARN.log("No servers available for proxied {} request", requestType);
+            return null;
+        }
+
+        ProxiedRequest proxied = new ProxiedRequest(requestType, estimatedMillis, key, selected, started);
+
+        byte[] line = (request + "\n").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer first = ByteBuffer.allocate(line.length + extra.remaining());
+        first.put(line).put(extra).flip();
+
+        try {
+            ProxyRelay relay = new ProxyRelay(client, selected.address(), first, proxied, proxied);
+            AsyncLogger.REQUEST.log("Proxying {} request to server on port: {} (estimated time: {}ms)",
+                                    requestType, selected.port, estimatedMillis);
+            return relay;
+        } catch (IOException e) {
+            reportFailure(selected, "connect");
+            proxied.run();
+            throw e;
+        } catch (RuntimeException e) {
+            // The assignment is already counted against the server, give it back
+            proxied.run();
+            throw e;
+        }
+    }
+
+    // The server currently holding a proxied request. A BUSY reply marks that server busy for
+    // the type, a failed connect counts against it; either moves the request, with its
+    // in-flight count and work, to another server. A first reply slower than slowMillis also
+    // counts as a failure, found by a watchdog on the liveness wheel.
+    private static class ProxiedRequest implements ProxyRelay.RetryHandler, Runnable {
+        private final String requestType;
+        private final long estimatedMillis;
+        private final long key;
+        private volatile Backend backend;
+        private long work;
+        private int retries = 0;
+        private TimingWheel.Timeout watchdog;
+        private final long started;
+
+        ProxiedRequest(String requestType, long estimatedMillis, long key, Backend backend, long started) {
+            this.requestType = requestType;
+            this.estimatedMillis = estimatedMillis;
+            this.key = key;
+            this.started = started;
+            assign(backend);
+        }
+
+        private void assign(Backend selected) {
+            backend = selected;
+            recordAssignment(selected);
+            // Released exactly when the relay completes instead of at its estimated end
+            work = trackWork ? estimatedMillis : 0;
+            if (work != 0) selected.outstandingWork.addAndGet(work);
+            if (slowMillis > 0) {
+                if (watchdog != null) watchdog.cancel();
+                watchdog = livenessWheel.schedule(() -> reportFailure(selected, "slow"), slowMillis, TimeUnit.MILLISECONDS);
             }
         }
-        return best;
+
+        public InetSocketAddress retry(String reason) {
+            if (reason.startsWith("BUSY")) {
+                proxyBusyTotal.get(WireCodec.typeLabel(requestType)).increment();
+                markBusy(backend, requestType);
+            } else {
+                reportFailure(backend, "connect");
+            }
+            if (retries >= MAX_PROXY_RETRIES) return null;
+            Backend next = selectServer(requestType, estimatedMillis, key);
+            if (next == null || next == backend || isBusy(next, WireCodec.typeCode(requestType))) return null;
+
+            retries++;
+            AsyncLogger.INFO.log("Server on port {}: {}, retrying on port {}", backend.port, reason, next.port);
+            completeProxied(backend, work);
+            assign(next);
+            return next.address();
+        }
+
+        public void replied(long nanos) {
+            if (watchdog != null) watchdog.cancel();
+            backend.firstByteLatency.record(nanos);
+            if (slowMillis <= 0 || TimeUnit.NANOSECONDS.toMillis(nanos) < slowMillis) {
+                reportSuccess(backend);
+            }
+        }
+
+        // The proxied response has been relayed (or the relay failed)
+        public void run() {
+            if (watchdog != null) watchdog.cancel();
+            proxyLatency.get(WireCodec.typeLabel(requestType)).record(System.nanoTime() - started);
+            completeProxied(backend, work);
+        }
     }
 
-    private static void monitorServerHealth() {
-        while (true) {
-            try {
-                Thread.sleep(10000); // Check every 10 seconds
-                long currentTime = System.currentTimeMillis();
-                List<Socket> deadServers = new ArrayList<>();
-
-                for (Socket server : servers) {
-                    long lastHeartbeat = serverLastHeartbeat.getOrDefault(server, 0L);
-                    if (currentTime - lastHeartbeat > 15000) { // 15 seconds timeout
-                        deadServers.add(server);
+    // The proxied response has been fully relayed: release its work and in-flight count now
+    private static void completeProxied(Backend backend, long work) {
+        if (work != 0) backend.outstandingWork.addAndGet(-work);
+        backend.load.updateAndGet(load -> load > 0 ? load - 1 : 0);
+        indexLoad(backend);
+    }
+
+    // Estimate request processing time based on type and parameters. The duration is the
+    // first parameter that is a plain number or ends in "s" or "sec" (e.g. "5", "5s"), scanned
+    // in place without split/regex.
+    static int estimateRequestTime(String requestType, String parameters) {
+        int baseTime = REQUEST_ESTIMATES.getOrDefault(requestType, 5);
+        if (!requestType.equals(COMPUTATION) && !requestType.equals(VIDEO_STREAMING)) {
+            return baseTime;
+        }
+
+        int start = 0;
+        int length = parameters.length();
+        while (start < length) {
+            int end = parameters.indexOf(' ', start);
+            if (end < 0) end = length;
+            if (end > start && (parameters.charAt(end - 1) == 's' || endsWithSec(parameters, start, end) ||
+                                isNumber(parameters, start, end))) {
+                // Extract duration from the token's digits, capped so long digit runs cannot overflow
+                int duration = 0;
+                boolean digits = false;
+                for (int i = start; i < end; i++) {
+                    char c = parameters.charAt(i);
+                    if (c >= '0' && c <= '9') {
+                        duration = Math.min(MAX_ESTIMATE_SECONDS, duration * 10 + (c - '0'));
+                        digits = true;
                     }
                 }
+                // Use default if the token has no number in it
+                return digits ? duration : baseTime;
+            }
+            start = end + 1;
+        }
+        return baseTime;
+    }
+
+    private static boolean endsWithSec(String parameters, int start, int end) {
+        return end - start >= 3 && parameters.regionMatches(end - 3, "sec", 0, 3);
+    }
+
+    private static boolean isNumber(String parameters, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = parameters.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    // Expected milliseconds for a request of estimateRequestTime's seconds: what servers have
+    // reported for its type and duration bucket, the static estimate until they have
+    static long estimateRequestMillis(String requestType, int seconds) {
+        seconds = Math.min(seconds, MAX_ESTIMATE_SECONDS); // binary requests carry any int
+        boolean timed = requestType.equals(COMPUTATION) || requestType.equals(VIDEO_STREAMING);
+        return costEstimator.estimate(requestType, timed ? seconds : 0, TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    // cost=<type>/<bucket>:<count>:<ms per unit>,... from a load report
+    private static void observeCosts(String costs) {
+        for (String entry : costs.split(",")) {
+            String[] fields = entry.split(":");
+            if (fields.length != 3) continue;
+            int slash = fields[0].indexOf('/');
+            if (slash < 0) continue;
+            String requestType = fields[0].substring(0, slash);
+            boolean timed = !fields[0].endsWith("/0");
+            // A timed request was assumed to take its duration, others their static estimate
+            double fallbackUnit = timed ? 1000.0 : REQUEST_ESTIMATES.getOrDefault(requestType, 5) * 1000.0;
+            costEstimator.observe(fields[0], Long.parseLong(fields[1]), Double.parseDouble(fields[2]), fallbackUnit);
+        }
+    }
+
+    // Select best server based on request type and load balancing method
+    static Backend selectServer(String requestType, long estimatedMillis) {
+        return selectServer(requestType, estimatedMillis, NO_KEY);
+    }
+
+    static Backend selectServer(String requestType, long estimatedMillis, long key) {
+        Backend[] pool = backends;
+        if (pool.length == 0) return null;
+
+        Backend selected;
+        if (requestType.equals(COMPUTATION) || requestType.equals(VIDEO_STREAMING)) {
+            // For computation and streaming requests, prefer least loaded server (by default)
+            selected = selectServerByStrategy(heavyStrategy, pool, estimatedMillis, key);
+        } else {
+            // For quick requests, round-robin is fine (by default)
+            selected = selectServerByStrategy(lightStrategy, pool, estimatedMillis, key);
+        }
+
+        int type = WireCodec.typeCode(requestType);
+        if (isBusy(selected, type) || declinedBySlowStart(selected)) {
+            return selectServerOtherThan(pool, type, selected);
+        }
+        return selected;
+    }
+
+    // A server ramping up after an ejection takes only its ramp share of the picks that land on
+    // it; empty load makes it the least-load choice for everything otherwise
+    private static boolean declinedBySlowStart(Backend backend) {
+        if (backend.slowStartFrom == 0) return false;
+        int ramp = backend.rampPercent();
+        return ramp < 100 && ThreadLocalRandom.current().nextInt(100) >= ramp;
+    }
+
+    // Least loaded other server whose bulkhead for the type has room (and for COMPUTATION, CPU to
+    // spare); the original choice when there is none, a full server will answer BUSY itself
+    private static Backend selectServerOtherThan(Backend[] pool, int type, Backend fallback) {
+        Backend best = null;
+        int minLoad = Integer.MAX_VALUE;
+        for (Backend b : pool) {
+            int load = b.load.get();
+            if (load < minLoad && b != fallback && !isBusy(b, type)) {
+                minLoad = load;
+                best = b;
+            }
+        }
+        return best != null ? best : fallback;
+    }
 
-                for (Socket deadServer : deadServers) {
-                    System.out.println("Removing dead server on port: " + serverPorts.get(deadServer));
-                    cleanupServer(deadServer);
+    private static Backend selectServerByStrategy(String strategy, Backend[] pool, long estimatedMillis, long key) {
+        switch (strategy) {
+            case AFFINITY:
+                // Requests without a key have nothing to be affine to
+                if (key != NO_KEY) {
+                    Backend owner = ring.select(key, affinityBound);
+                    if (owner != null) return owner;
                 }
+                return selectServerByRoundRobin(pool);
+            case LEAST_WORK:
+                return selectServerByWeightedLoad(pool, estimatedMillis);
+            case LEAST_LOAD:
+                return selectServerByLeastLoad(pool);
+            case LEAST_LOAD_INDEXED:
+                Backend min = loadIndex.min();
+                return min != null ? min : selectServerByLeastLoad(pool);
+            case POWER_OF_CHOICES:
+                return selectServerByPowerOfChoices(pool, choices);
+            default:
+                return selectServerByRoundRobin(pool);
+        }
+    }
 
-            } catch (InterruptedException e) {
-                break;
+    // Least Load Algorithm (Dynamic)
+    private static Backend selectServerByLeastLoad(Backend[] pool) {
+        Backend best = null;
+        int minLoad = Integer.MAX_VALUE;
+
+        for (Backend b : pool) {
+            int load = b.load.get();
+            if (load < minLoad) {
+                minLoad = load;
+                best = b;
+            }
+        }
+        return best;
+    }
+
+    // Power of d Choices: sample d random servers and take the least loaded,
+    // constant cost per pick and no herding onto a single minimum between load reports
+    private static Backend selectServerByPowerOfChoices(Backend[] pool, int d) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int n = pool.length;
+        int first = random.nextInt(n);
+        Backend best = pool[first];
+        int minLoad = best.load.get();
+
+        for (int i = 1; i < d && i < n; i++) {
+            // Offset from the first sample so d = 2 never compares a server with itself
+            Backend candidate = pool[(first + 1 + random.nextInt(n - 1)) % n];
+            int load = candidate.load.get();
+            if (load < minLoad) {
+                minLoad = load;
+                best = candidate;
             }
         }
+        return best;
+    }
+
+    // Round Robin Algorithm (Static)
+    private static final AtomicInteger roundRobinIndex = new AtomicInteger(0);
+    private static Backend selectServerByRoundRobin(Backend[] pool) {
+        int index = (roundRobinIndex.getAndIncrement() & Integer.MAX_VALUE) % pool.length;
+        return pool[index];
+    }
+
+    // Weighted Load Algorithm (Least Outstanding Work): minimizes the expected completion
+    // time of the new request, i.e. the estimated milliseconds already queued on each server
+    // plus this request's own estimate, instead of the connection count
+    private static Backend selectServerByWeightedLoad(Backend[] pool, long estimatedMillis) {
+        Backend best = null;
+        double bestScore = Double.MAX_VALUE;
+        long requestWork = estimatedMillis;
+
+        for (Backend b : pool) {
+            // Weight calculation: lower is better
+            double score = b.outstandingWork.get() + requestWork;
+            if (b.balancingMethod.equals("static")) {
+                score *= 1.2; // Slightly penalize static servers for dynamic requests
+            }
+
+            if (score < bestScore) {
+                bestScore = score;
+                best = b;
+            }
+        }
+        return best;
     }
 
-    private static void cleanupServer(Socket socket) {
-        synchronized (servers) {
-            servers.remove(socket);
-            serverLoads.remove(socket);
-            serverPorts.remove(socket);
-            serverLastHeartbeat.remove(socket);
-            serverBalancingMethod.remove(socket);
+    // Returns false when the server had already been removed
+    static boolean cleanupServer(Backend backend) {
+        synchronized (registryLock) {
+            if (backend.removed) return false;
+            backend.removed = true;
+            removeRoutable(backend);
         }
+        // Mirrors and restored servers have no join connection here
+        if (backend.socket == null) return true;
+        PeerSync.publishDown(backend);
         try {
-            socket.close();
+            backend.socket.close();
         } catch (IOException e) {
             // Ignore
         }
+        return true;
     }
 }
\ No newline at end of file
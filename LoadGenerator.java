@@ -0,0 +1,439 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Open-loop load generator. Requests go out on a schedule fixed in advance (constant or Poisson
+// arrivals at -rate per second) instead of when an earlier request finishes, so a slow system
+// keeps being offered the same load and its delays show up as latency rather than as fewer
+// requests. Every latency is measured from the request's scheduled start, which includes any
+// time it waited for a session to send it (no coordinated omission), and is split into the
+// load balancer lookup and the backend exchange. Runs against the LB on localhost:9001, or
+// spreads lookups over several peered LBs (-lb 9001,9002,9003).
+public class LoadGenerator {
+    private static final String[] TYPES = {"DIRECTORY", "FILE_TRANSFER", "COMPUTATION", "VIDEO_STREAMING"};
+    private static final int MAX_RETRIES = 3;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    // Latency series per request type and one over all types: [lookup, backend, total]
+    private static final String[] PHASES = {"lookup", "backend", "total"};
+    private static final LatencyHistogram[][] latency = new LatencyHistogram[TYPES.length + 1][PHASES.length];
+    // Scheduled start to the moment a session began sending, how far the generator itself fell behind
+    private static final LatencyHistogram sendLag = new LatencyHistogram();
+    // Counted when handed to a session, so requests still queued for one are in flight
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong refused = new AtomicLong();
+    private static final AtomicLong noServer = new AtomicLong();
+    private static final AtomicLong errors = new AtomicLong();
+    // Requests scheduled before this are sent but not recorded
+    private static long recordFrom;
+
+    private static int[] lbPorts = {9001};
+    private static final AtomicLong nextLb = new AtomicLong();
+    private static LookupClient lookupClient;
+    private static int timeoutMillis = 30000;
+    private static PrintWriter csv;
+
+    public static void main(String[] args) throws Exception {
+        double rate = 50;
+        boolean poisson = true;
+        int durationSeconds = 30;
+        int warmupSeconds = 0;
+        int drainSeconds = 60;
+        String mix = "DIRECTORY=40,FILE_TRANSFER=40,COMPUTATION=15,VIDEO_STREAMING=5";
+        String seconds = "COMPUTATION=1:5,VIDEO_STREAMING=2:10";
+        int files = 1000;
+        double zipf = 1.0;
+        String exec = "virtual";
+        String lookup = "connect";
+        int connections = 4;
+        long seed = System.nanoTime();
+        String csvFile = null;
+        String hdrPrefix = null;
+        String logLevel = "info";
+        int logSample = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-rate") && i + 1 < args.length) {
+                rate = Double.parseDouble(args[i + 1]);
+            } else if (args[i].equals("-arrival") && i + 1 < args.length) {
+                poisson = !args[i + 1].equals("constant");
+            } else if (args[i].equals("-duration") && i + 1 < args.length) {
+                durationSeconds = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-warmup") && i + 1 < args.length) {
+                warmupSeconds = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-drain") && i + 1 < args.length) {
+                drainSeconds = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-mix") && i + 1 < args.length) {
+                mix = args[i + 1];
+            } else if (args[i].equals("-seconds") && i + 1 < args.length) {
+                seconds = args[i + 1];
+            } else if (args[i].equals("-files") && i + 1 < args.length) {
+                files = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("-zipf") && i + 1 < args.length) {
+                zipf = Double.parseDouble(args[i + 1]);
+            } else if (args[i].equals("-exec") && i + 1 < args.length) {
+                exec = args[i + 1];
+            } else if (args[i].equals("-lb") && i + 1 < args.length) {
+                lbPorts = LookupClient.parsePorts(args[i + 1]);
+            } else if (args[i].equals("-lookup") && i + 1 < args.length) {
+                lookup = args[i + 1];
+            } else if (args[i].equals("-connections") && i + 1 < args.length) {
+                connections = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("-timeout") && i + 1 < args.length) {
+                timeoutMillis = (int) Math.min(Integer.MAX_VALUE, Long.parseLong(args[i + 1]) * 1000);
+            } else if (args[i].equals("-seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("-csv") && i + 1 < args.length) {
+                csvFile = args[i + 1];
+            } else if (args[i].equals("-hdr") && i + 1 < args.length) {
+                hdrPrefix = args[i + 1];
+            } else if (args[i].equals("-log") && i + 1 < args.length) {
+                logLevel = args[i + 1];
+            } else if (args[i].equals("-logSample") && i + 1 < args.length) {
+                logSample = Integer.parseInt(args[i + 1]);
+            }
+        }
+        AsyncLogger.configure(logLevel, logSample);
+
+        double[] mixCdf = parseMix(mix);
+        int[][] secondRanges = parseSeconds(seconds);
+        double[] fileCdf = zipfCdf(files, zipf);
+        if (lookup.equals("pooled") || lookup.equals("binary")) {
+            lookupClient = new LookupClient("localhost", lbPorts, Math.max(connections, lbPorts.length), lookup.equals("binary"));
+        } else {
+            lookup = "connect";
+        }
+        for (LatencyHistogram[] series : latency) {
+            for (int p = 0; p < PHASES.length; p++) {
+                series[p] = new LatencyHistogram();
+            }
+        }
+        if (csvFile != null) {
+            csv = new PrintWriter(new BufferedWriter(new FileWriter(csvFile)));
+            csv.println("scheduled_ms,type,request,port,attempts,lookup_ms,backend_ms,total_ms,outcome");
+        }
+        ExecutionMode sessions = ExecutionMode.parse(exec, "load");
+
+        System.out.println("=== Open-Loop Load Test ===");
+        System.out.println(String.format("Offered %.1f req/s (%s arrivals) for %ds after %ds warmup; mix %s; " +
+            "%d files, zipf %.2f; lookups %s on %s; sessions %s; seed %d", rate, poisson ? "poisson" : "constant",
+            durationSeconds, warmupSeconds, mix, files, zipf, lookup, Arrays.toString(lbPorts), sessions.name(), seed));
+
+        // The schedule is drawn up front by this thread alone, so a seed repeats the same run
+        SplittableRandom random = new SplittableRandom(seed);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        recordFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = recordFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long meanGap = (long) (1e9 / rate);
+        long nextReport = start + REPORT_INTERVAL_NANOS;
+        long scheduled = start;
+        while (scheduled < end) {
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long due = scheduled;
+            int type = pick(mixCdf, random);
+            String request = buildRequest(type, secondRanges, fileCdf, random);
+            sent.incrementAndGet();
+            sessions.execute(() -> send(due, type, request));
+
+            scheduled += poisson ? (long) (-Math.log(1 - random.nextDouble()) * meanGap) : meanGap;
+            if (scheduled >= nextReport) {
+                AsyncLogger.INFO.log("t={}s {}", (scheduled - start) / 1_000_000_000L, progress());
+                nextReport += REPORT_INTERVAL_NANOS;
+            }
+        }
+
+        // Wait for what is still in flight, then count the rest as unfinished
+        long sendEnd = System.nanoTime();
+        long drainDeadline = sendEnd + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (inFlight() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        AsyncLogger.flush();
+        printResults((sendEnd - start) / 1e9);
+        System.out.println("\nSessions: " + sessions.stats());
+        if (lookupClient != null) {
+            System.out.println();
+            lookupClient.printStats();
+            lookupClient.close();
+        }
+        if (csv != null) {
+            synchronized (csv) {
+                csv.close();
+            }
+            System.out.println("Wrote " + csvFile);
+        }
+        if (hdrPrefix != null) {
+            writeHdr(hdrPrefix);
+        }
+        System.exit(0);
+    }
+
+    // "TYPE=weight,..." into the cumulative share of each entry of TYPES
+    private static double[] parseMix(String spec) {
+        double[] weights = new double[TYPES.length];
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            int type = Arrays.asList(TYPES).indexOf(parts[0].trim().toUpperCase());
+            if (type < 0 || parts.length != 2) {
+                AsyncLogger.WARN.log("Ignoring mix entry {} (types: {})", entry, Arrays.toString(TYPES));
+                continue;
+            }
+            weights[type] = Math.max(0, Double.parseDouble(parts[1]));
+        }
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            weights[i] = total;
+        }
+        if (total == 0) throw new IllegalArgumentException("Empty request mix: " + spec);
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= total;
+        }
+        return weights;
+    }
+
+    // "COMPUTATION=1:5,VIDEO_STREAMING=10" into a uniform [min, max] seconds range per type
+    private static int[][] parseSeconds(String spec) {
+        int[][] ranges = new int[TYPES.length][];
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            int type = Arrays.asList(TYPES).indexOf(parts[0].trim().toUpperCase());
+            if (type < 0 || parts.length != 2) {
+                AsyncLogger.WARN.log("Ignoring seconds entry {}", entry);
+                continue;
+            }
+            String[] bounds = parts[1].split(":");
+            int min = Integer.parseInt(bounds[0]);
+            int max = bounds.length > 1 ? Integer.parseInt(bounds[1]) : min;
+            ranges[type] = new int[] {Math.max(1, min), Math.max(min, max)};
+        }
+        return ranges;
+    }
+
+    private static int pick(double[] mixCdf, SplittableRandom random) {
+        double u = random.nextDouble();
+        int type = 0;
+        while (type < mixCdf.length - 1 && u >= mixCdf[type]) {
+            type++;
+        }
+        return type;
+    }
+
+    private static String buildRequest(int type, int[][] secondRanges, double[] fileCdf, SplittableRandom random) {
+        switch (TYPES[type]) {
+            case "FILE_TRANSFER":
+                return "FILE_TRANSFER file-" + zipfSample(fileCdf, random.nextDouble()) + ".bin";
+            case "COMPUTATION":
+            case "VIDEO_STREAMING":
+                int[] range = secondRanges[type] != null ? secondRanges[type] : new int[] {5, 5};
+                return TYPES[type] + " " + (range[0] + random.nextInt(range[1] - range[0] + 1));
+            default:
+                return TYPES[type];
+        }
+    }
+
+    // Cumulative distribution of Zipf(s) over ranks 1..n (s = 0 is uniform)
+    static double[] zipfCdf(int n, double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int k = 1; k <= n; k++) {
+            sum += 1.0 / Math.pow(k, s);
+            cdf[k - 1] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cdf[k] /= sum;
+        }
+        return cdf;
+    }
+
+    // The rank in 1..n at cumulative probability u
+    static int zipfSample(double[] cdf, double u) {
+        int index = Arrays.binarySearch(cdf, u);
+        return Math.min(cdf.length, (index >= 0 ? index : -index - 1) + 1);
+    }
+
+    private static long inFlight() {
+        return sent.get() - completed.get() - refused.get() - noServer.get() - errors.get();
+    }
+
+    private static String progress() {
+        LatencyHistogram.Snapshot total = latency[TYPES.length][2].snapshot();
+        return String.format("sent=%d completed=%d inFlight=%d refused=%d errors=%d p50=%.1fms p99=%.1fms",
+            sent.get(), completed.get(), inFlight(), refused.get(), errors.get() + noServer.get(),
+            total.percentile(0.50) / 1e6, total.percentile(0.99) / 1e6);
+    }
+
+    // One scheduled request: look up a server, then run the request on it, looking up again
+    // when the server refuses it (BUSY) or cannot be connected to
+    private static void send(long due, int type, String request) {
+        long begin = System.nanoTime();
+        boolean recorded = due >= recordFrom;
+        if (recorded) sendLag.record(begin - due);
+
+        String outcome = "error";
+        int port = 0;
+        int attempts = 0;
+        long assigned = 0;
+        try {
+            while (attempts <= MAX_RETRIES) {
+                if (attempts > 0) Thread.sleep(50L * attempts);
+                attempts++;
+                String reply = lookup(request);
+                if (!reply.startsWith("SERVER_PORT")) {
+                    outcome = "no_server";
+                    break;
+                }
+                port = Integer.parseInt(reply.substring(12).trim());
+                assigned = System.nanoTime();
+                outcome = exchange(port, request);
+                if (outcome.equals("ok")) break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            AsyncLogger.DEBUG.log("{} failed: {}", request, e);
+            outcome = "error";
+        }
+        long done = System.nanoTime();
+
+        switch (outcome) {
+            case "ok":
+                if (recorded) {
+                    record(type, 0, assigned - due);
+                    record(type, 1, done - assigned);
+                    record(type, 2, done - due);
+                }
+                completed.incrementAndGet();
+                break;
+            case "busy":
+            case "failed":
+                outcome = "refused";
+                refused.incrementAndGet();
+                break;
+            case "no_server":
+                noServer.incrementAndGet();
+                break;
+            default:
+                errors.incrementAndGet();
+        }
+        AsyncLogger.REQUEST.log("{} -> {} in {}ms", request, outcome, (done - due) / 1_000_000);
+        if (csv != null && recorded) {
+            boolean ok = outcome.equals("ok");
+            String row = String.format(Locale.ROOT, "%.3f,%s,%s,%d,%d,%.3f,%.3f,%.3f,%s",
+                (due - recordFrom) / 1e6, TYPES[type], request, port, attempts,
+                ok ? (assigned - due) / 1e6 : 0.0, ok ? (done - assigned) / 1e6 : 0.0, (done - due) / 1e6, outcome);
+            synchronized (csv) {
+                csv.println(row);
+            }
+        }
+    }
+
+    private static void record(int type, int phase, long nanos) {
+        latency[type][phase].record(nanos);
+        latency[TYPES.length][phase].record(nanos);
+    }
+
+    // A connection per lookup, to the load balancers in turn; one that refuses is skipped
+    private static String lookup(String request) throws IOException {
+        if (lookupClient != null) return lookupClient.lookup(request);
+        long first = nextLb.getAndIncrement();
+        for (int i = 1; ; i++) {
+            int lbPort = lbPorts[(int) ((first + i) % lbPorts.length)];
+            try {
+                return lookup(lbPort, request);
+            } catch (ConnectException e) {
+                if (i == lbPorts.length) throw e;
+            }
+        }
+    }
+
+    private static String lookup(int lbPort, String request) throws IOException {
+        try (Socket lb = new Socket()) {
+            lb.connect(new InetSocketAddress("localhost", lbPort), CONNECT_TIMEOUT_MILLIS);
+            lb.setSoTimeout(timeoutMillis);
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(lb.getOutputStream()));
+            out.write("REQUEST " + request + "\n");
+            out.flush();
+            String reply = new BufferedReader(new InputStreamReader(lb.getInputStream(), StandardCharsets.ISO_8859_1)).readLine();
+            return reply != null ? reply : "NO_RESPONSE";
+        }
+    }
+
+    // Sends the request to the server and reads the whole response: "ok", "busy" or "failed"
+    private static String exchange(int port, String request) throws IOException {
+        try (Socket server = new Socket()) {
+            try {
+                server.connect(new InetSocketAddress("localhost", port), CONNECT_TIMEOUT_MILLIS);
+            } catch (ConnectException | SocketTimeoutException e) {
+                Client.reportFailure(lbPorts[0], port, "connect");
+                return "failed";
+            }
+            server.setSoTimeout(timeoutMillis);
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(server.getOutputStream()));
+            out.write(request + "\n");
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.ISO_8859_1));
+            String line = in.readLine();
+            if (line == null) throw new EOFException("Server " + port + " closed without a reply");
+            if (line.startsWith("BUSY")) return "busy";
+            // Streamed responses have a line per second; read to the end so the backend phase
+            // covers the whole response
+            while (line != null) {
+                Client.skipFileBody(in, line);
+                if (line.equals("END") || line.contains("_COMPLETE") || line.startsWith("FILE_NOT_FOUND")) {
+                    return "ok";
+                }
+                line = in.readLine();
+            }
+            throw new EOFException("Server " + port + " closed mid-response");
+        }
+    }
+
+    private static void printResults(double sendSeconds) {
+        System.out.println("\n=== Results ===");
+        System.out.println(String.format("Sent %d in %.1fs (%.1f/s), completed %d, refused %d, no server %d, errors %d, unfinished %d",
+            sent.get(), sendSeconds, sent.get() / sendSeconds, completed.get(), refused.get(), noServer.get(),
+            errors.get(), inFlight()));
+        LatencyHistogram.Snapshot lag = sendLag.snapshot();
+        System.out.println(String.format("Send lag (scheduled to sent): p50=%.2fms p99=%.2fms max=%.2fms",
+            lag.percentile(0.50) / 1e6, lag.percentile(0.99) / 1e6, lag.maxNanos / 1e6));
+        if (lag.percentile(0.99) > TimeUnit.MILLISECONDS.toNanos(10)) {
+            System.out.println("The generator fell behind its schedule, latencies include its own delay " +
+                               "(fewer sessions: -exec virtual on Java 21+, or a lower -rate)");
+        }
+
+        System.out.println("\n=== Latency From Scheduled Start (ms) ===");
+        System.out.println(String.format("%-16s %-8s %7s %9s %9s %9s %9s %9s", "type", "phase", "n", "p50", "p90", "p99", "p99.9", "max"));
+        for (int t = 0; t <= TYPES.length; t++) {
+            for (int p = 0; p < PHASES.length; p++) {
+                LatencyHistogram.Snapshot s = latency[t][p].snapshot();
+                if (s.count == 0) continue;
+                System.out.println(String.format("%-16s %-8s %7d %9.2f %9.2f %9.2f %9.2f %9.2f",
+                    p == 0 ? (t < TYPES.length ? TYPES[t] : "ALL") : "", PHASES[p], s.count,
+                    s.percentile(0.50) / 1e6, s.percentile(0.90) / 1e6, s.percentile(0.99) / 1e6,
+                    s.percentile(0.999) / 1e6, s.maxNanos / 1e6));
+            }
+        }
+    }
+
+    // <prefix>-<phase>.hgrm over all request types, in milliseconds
+    private static void writeHdr(String prefix) throws IOException {
+        for (int p = 0; p < PHASES.length; p++) {
+            String file = prefix + "-" + PHASES[p] + ".hgrm";
+            try (Writer out = new BufferedWriter(new FileWriter(file))) {
+                latency[TYPES.length][p].snapshot().writeDistribution(out, 1e6);
+            }
+            System.out.println("Wrote " + file);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+// Indexed binary min-heap of backends keyed by load, gives exact least-load in O(1)
+// Updates are O(log n) under the heap lock, reads go through the volatile min field.
+// Keys are read from Backend.load under the lock, so of concurrent updates the last one
+// always leaves the current load behind, whatever order they were made in.
+public class LoadIndex {
+    private Backend[] heap = new Backend[16];
+    private int[] keys = new int[16];
+    private int size = 0;
+    private volatile Backend min;
+
+    public Backend min() {
+        return min;
+    }
+
+    public synchronized void add(Backend backend) {
+        int load = backend.load.get();
+        if (size == heap.length) {
+            heap = java.util.Arrays.copyOf(heap, size * 2);
+            keys = java.util.Arrays.copyOf(keys, size * 2);
+        }
+        heap[size] = backend;
+        keys[size] = load;
+        backend.heapIndex = size;
+        siftUp(size++);
+        min = heap[0];
+    }
+
+    public synchronized void remove(Backend backend) {
+        int i = backend.heapIndex;
+        if (i < 0 || i >= size || heap[i] != backend) return;
+
+        size--;
+        if (i != size) {
+            move(size, i);
+            siftDown(i);
+            siftUp(i);
+        }
+        heap[size] = null;
+        backend.heapIndex = -1;
+        min = size > 0 ? heap[0] : null;
+    }
+
+    public synchronized void update(Backend backend) {
+        int i = backend.heapIndex;
+        if (i < 0 || i >= size || heap[i] != backend) return;
+
+        int load = backend.load.get();
+        int old = keys[i];
+        keys[i] = load;
+        if (load < old) {
+            siftUp(i);
+        } else if (load > old) {
+            siftDown(i);
+        }
+        min = heap[0];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (keys[parent] <= keys[i]) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) break;
+            int smallest = left;
+            if (left + 1 < size && keys[left + 1] < keys[left]) smallest = left + 1;
+            if (keys[i] <= keys[smallest]) break;
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        Backend backend = heap[a];
+        int key = keys[a];
+        move(b, a);
+        heap[b] = backend;
+        keys[b] = key;
+        backend.heapIndex = b;
+    }
+
+    private void move(int from, int to) {
+        heap[to] = heap[from];
+        keys[to] = keys[from];
+        heap[to].heapIndex = to;
+    }
+}
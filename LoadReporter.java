@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+// Pushes a server's load to the LB when it has moved enough since the last report, instead of
+// on a fixed period. changed() is called on every load change and only wakes the reporter
+// thread once the load is at least max(delta, percent of the last report) away from what the
+// LB knows. The reporter then waits out the coalescing window, so a burst of changes becomes one
+// report of the settled value, and still sends a keepalive when nothing moved for a while.
+// With delta 0 only keepalives are sent, i.e. the old fixed-period heartbeat.
+public class LoadReporter {
+    public interface Sink {
+        void send(String report) throws IOException;
+    }
+
+    private final IntSupplier load;
+    private final IntFunction<String> format;
+    private final Sink sink;
+    private final int delta;
+    private final int percent;
+    private final long coalesceNanos;
+    private final long keepaliveNanos;
+    private final Thread thread;
+
+    private volatile int lastReported = 0;
+    private volatile boolean triggered = false;
+    private volatile boolean running = true;
+    private long changeReports = 0;
+    private long keepaliveReports = 0;
+    private long bytesSent = 0;
+
+    public LoadReporter(String name, IntSupplier load, IntFunction<String> format, Sink sink,
+                        int delta, int percent, long coalesceMillis, long keepaliveMillis) {
+        this.load = load;
+        this.format = format;
+        this.sink = sink;
+        this.delta = delta;
+        this.percent = percent;
+        this.coalesceNanos = TimeUnit.MILLISECONDS.toNanos(coalesceMillis);
+        this.keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(keepaliveMillis);
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    // Cheap enough for every increment and decrement: two volatile reads unless it triggers
+    public void changed(int current) {
+        if (delta <= 0 || triggered) return;
+        int last = lastReported;
+        int threshold = Math.max(delta, (int) ((long) last * percent / 100));
+        if (Math.abs(current - last) >= threshold) {
+            triggered = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // Report at the next chance whatever the load did, e.g. to a load balancer just joined
+    public void reportNow() {
+        triggered = true;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        long lastSent = System.nanoTime();
+        try {
+            while (running) {
+                long keepaliveAt = lastSent + keepaliveNanos;
+                long now;
+                while (running && !triggered && (now = System.nanoTime()) < keepaliveAt) {
+                    LockSupport.parkNanos(this, keepaliveAt - now);
+                }
+                if (!running) return;
+
+                boolean change = triggered;
+                if (change) {
+                    // Let the rest of the burst land before reporting
+                    long windowEnd = System.nanoTime() + coalesceNanos;
+                    while (running && (now = System.nanoTime()) < windowEnd) {
+                        LockSupport.parkNanos(this, windowEnd - now);
+                    }
+                }
+
+                int current = load.getAsInt();
+                String report = format.apply(current);
+                lastReported = current;
+                triggered = false;
+                sink.send(report);
+                lastSent = System.nanoTime();
+                synchronized (this) {
+                    if (change) changeReports++; else keepaliveReports++;
+                    bytesSent += report.length();
+                }
+            }
+        } catch (IOException e) {
+            AsyncLogger.WARN.log("Lost connection to load balancer: {}", e.getMessage());
+        }
+    }
+
+    public synchronized long reports() {
+        return changeReports + keepaliveReports;
+    }
+
+    public synchronized long bytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized String stats() {
+        return String.format("reports=%d (changes=%d keepalives=%d) bytes=%d", changeReports + keepaliveReports,
+            changeReports, keepaliveReports, bytesSent);
+    }
+}
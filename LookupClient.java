@@ -0,0 +1,260 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Routing lookups over a small pool of persistent load balancer connections.
+// Each connection carries many REQUEST lines; lookupAll pipelines a whole batch
+// with "@<id>" tags and matches the replies by id. With binary set the connections use
+// WireCodec frames instead of text lines. Given several load balancer ports (peers sharing
+// their servers), new connections go to each in turn, skipping ones that refuse.
+public class LookupClient implements Closeable {
+    private final String host;
+    private final int[] ports;
+    private final AtomicInteger nextPort = new AtomicInteger(0);
+    private final BlockingQueue<Connection> idle;
+    private final List<Connection> all = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger created = new AtomicInteger(0);
+    private final int poolSize;
+    private final boolean binary;
+
+    private static class Connection {
+        final Socket socket;
+        final BufferedReader in;
+        final BufferedWriter out;
+        // Binary mode only
+        final InputStream rawIn;
+        final OutputStream rawOut;
+        final ByteBuffer frames = ByteBuffer.allocate(8 * 1024);
+        final byte[] body = new byte[WireCodec.MAX_FRAME];
+        final WireCodec.Message reply = new WireCodec.Message();
+        final long openedAt = System.nanoTime();
+        long lookups = 0;
+        int nextTag = 0;
+
+        Connection(String host, int port, boolean binary) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            if (binary) {
+                in = null;
+                out = null;
+                rawIn = new BufferedInputStream(socket.getInputStream());
+                rawOut = socket.getOutputStream();
+                rawOut.write(WireCodec.MAGIC);
+                rawOut.flush();
+                if (rawIn.read() != (WireCodec.MAGIC & 0xFF)) {
+                    socket.close();
+                    throw new IOException("Load balancer does not speak the binary protocol");
+                }
+            } else {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                rawIn = null;
+                rawOut = null;
+            }
+        }
+    }
+
+    public LookupClient(String host, int port, int poolSize) {
+        this(host, port, poolSize, false);
+    }
+
+    public LookupClient(String host, int port, int poolSize, boolean binary) {
+        this(host, new int[] {port}, poolSize, binary);
+    }
+
+    public LookupClient(String host, int[] ports, int poolSize, boolean binary) {
+        this.host = host;
+        this.ports = ports;
+        this.poolSize = poolSize;
+        this.binary = binary;
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    // Returns the load balancer's reply, e.g. "SERVER_PORT 7001" or "NO_SERVER_AVAILABLE"
+    public String lookup(String request) throws IOException {
+        return lookupAll(Collections.singletonList(request)).get(0);
+    }
+
+    // Pipelined: writes every request before reading any reply
+    public List<String> lookupAll(List<String> requests) throws IOException {
+        if (binary) return exchangeBinary(requests);
+        List<String> commands = new ArrayList<>(requests.size());
+        for (String request : requests) {
+            commands.add("REQUEST " + request);
+        }
+        return exchange(commands);
+    }
+
+    // Returns the raw LEASE reply, or NO_LEASE when the load balancer hands out none
+    public String lease() throws IOException {
+        if (binary) throw new IOException("Leases are only handed out over the text protocol");
+        return exchange(Collections.singletonList("LEASE")).get(0);
+    }
+
+    private List<String> exchange(List<String> commands) throws IOException {
+        Connection conn = borrow();
+        boolean healthy = false;
+        try {
+            int firstTag = conn.nextTag;
+            for (String command : commands) {
+                conn.out.write("@" + (conn.nextTag++) + " " + command + "\n");
+            }
+            conn.out.flush();
+
+            String[] replies = new String[commands.size()];
+            for (int i = 0; i < commands.size(); i++) {
+                String line = conn.in.readLine();
+                if (line == null) throw new IOException("Load balancer closed the connection");
+                int space = line.indexOf(' ');
+                int index = Integer.parseInt(line.substring(1, space)) - firstTag;
+                replies[index] = line.substring(space + 1);
+            }
+            conn.lookups += commands.size();
+            healthy = true;
+            return Arrays.asList(replies);
+        } finally {
+            release(conn, healthy);
+        }
+    }
+
+    // Same as exchange, one REQUEST frame per "<type> [parameters]" request
+    private List<String> exchangeBinary(List<String> requests) throws IOException {
+        Connection conn = borrow();
+        boolean healthy = false;
+        try {
+            int firstTag = conn.nextTag;
+            for (String request : requests) {
+                if (conn.frames.remaining() < WireCodec.MAX_FRAME) {
+                    conn.rawOut.write(conn.frames.array(), 0, conn.frames.position());
+                    conn.frames.clear();
+                }
+                encodeRequest(conn.frames, conn.nextTag++, request);
+            }
+            conn.rawOut.write(conn.frames.array(), 0, conn.frames.position());
+            conn.rawOut.flush();
+            conn.frames.clear();
+
+            String[] replies = new String[requests.size()];
+            for (int i = 0; i < requests.size(); i++) {
+                if (!WireCodec.readFrame(conn.rawIn, conn.body, conn.reply)) {
+                    throw new IOException("Load balancer closed the connection");
+                }
+                replies[conn.reply.tag - firstTag] = conn.reply.opcode == WireCodec.OP_SERVER_PORT
+                    ? "SERVER_PORT " + conn.reply.port : "NO_SERVER_AVAILABLE";
+            }
+            conn.lookups += requests.size();
+            healthy = true;
+            return Arrays.asList(replies);
+        } finally {
+            release(conn, healthy);
+        }
+    }
+
+    // FILE_TRANSFER names travel as bytes, durations like "5" or "5s" as a varint
+    private static void encodeRequest(ByteBuffer out, int tag, String request) throws IOException {
+        int space = request.indexOf(' ');
+        String requestType = space > 0 ? request.substring(0, space) : request;
+        String parameter = space > 0 ? request.substring(space + 1).trim() : "";
+        int type = WireCodec.typeCode(requestType);
+        if (type < 0) throw new IOException("Unknown request type " + requestType);
+
+        byte[] name = new byte[0];
+        int number = 0;
+        if (requestType.equals("FILE_TRANSFER")) {
+            name = parameter.getBytes(StandardCharsets.UTF_8);
+            if (name.length > WireCodec.MAX_NAME) throw new IOException("File name too long");
+        } else {
+            for (int i = 0; i < parameter.length() && Character.isDigit(parameter.charAt(i)); i++) {
+                number = number * 10 + (parameter.charAt(i) - '0');
+            }
+        }
+        WireCodec.encodeRequest(out, tag, type, number, name, name.length);
+    }
+
+    // Lookups per second for every connection this client opened
+    public void printStats() {
+        synchronized (all) {
+            System.out.println("=== Lookup Connections ===");
+            for (Connection conn : all) {
+                double seconds = (System.nanoTime() - conn.openedAt) / 1e9;
+                System.out.println(String.format("%s -> %d: %d lookups, %.0f lookups/s", conn.socket.getLocalSocketAddress(),
+                    conn.socket.getPort(), conn.lookups, conn.lookups / Math.max(seconds, 1e-3)));
+            }
+        }
+    }
+
+    private Connection borrow() throws IOException {
+        while (true) {
+            Connection conn = idle.poll();
+            if (conn != null) return conn;
+            if (created.incrementAndGet() <= poolSize) {
+                try {
+                    conn = connect();
+                    all.add(conn);
+                    return conn;
+                } catch (IOException e) {
+                    created.decrementAndGet();
+                    throw e;
+                }
+            }
+            created.decrementAndGet();
+
+            // Pool exhausted: wait briefly, then retry in case a broken connection freed a slot
+            try {
+                conn = idle.poll(50, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a lookup connection");
+            }
+            if (conn != null) return conn;
+        }
+    }
+
+    private Connection connect() throws IOException {
+        IOException failure = null;
+        int first = nextPort.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < ports.length; i++) {
+            try {
+                return new Connection(host, ports[(first + i) % ports.length], binary);
+            } catch (ConnectException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    // "9001,9002,9003" into load balancer ports
+    public static int[] parsePorts(String list) {
+        String[] parts = list.split(",");
+        int[] ports = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ports[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ports;
+    }
+
+    private void release(Connection conn, boolean healthy) {
+        if (healthy) {
+            idle.offer(conn);
+            return;
+        }
+        // Drop a broken connection, the next borrow opens a fresh one
+        all.remove(conn);
+        created.decrementAndGet();
+        try { conn.socket.close(); } catch (IOException e) {}
+    }
+
+    public void close() {
+        synchronized (all) {
+            for (Connection conn : all) {
+                try { conn.socket.close(); } catch (IOException e) {}
+            }
+        }
+    }
+}
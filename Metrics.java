@@ -0,0 +1,136 @@
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// Process-wide latency histograms and counters behind the STATS command. Metrics come in
+// families with at most one label (request type, backend port); callers look up a child once
+// per request with get(value), a plain ConcurrentHashMap read, and record into it directly.
+// text() is the human summary with rates since the previous call, prometheus() the
+// Prometheus exposition format with histograms as summaries in seconds.
+public class Metrics {
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private static final List<Family<?>> families = new CopyOnWriteArrayList<>();
+    private static final long startNanos = System.nanoTime();
+    private static long lastTextNanos = startNanos; // guarded by Metrics.class
+
+    public static class Family<T> {
+        final String name;
+        final String label;
+        final boolean histogram;
+        private final Map<String, T> children = new ConcurrentHashMap<>();
+        private final Function<String, T> create;
+        // Counts at the previous text(), for its rates
+        private final Map<String, Long> lastCounts = new ConcurrentHashMap<>();
+
+        Family(String name, String label, boolean histogram, Function<String, T> create) {
+            this.name = name;
+            this.label = label;
+            this.histogram = histogram;
+            this.create = create;
+        }
+
+        // The metric for one label value ("" for unlabelled families)
+        public T get(String value) {
+            T child = children.get(value);
+            return child != null ? child : children.computeIfAbsent(value, create);
+        }
+
+        String series(String value, String extra) {
+            if (label == null && extra == null) return name;
+            StringBuilder series = new StringBuilder(name).append('{');
+            if (label != null) series.append(label).append("=\"").append(value).append('"');
+            if (extra != null) series.append(label != null ? "," : "").append(extra);
+            return series.append('}').toString();
+        }
+
+        long count(T child) {
+            return histogram ? ((LatencyHistogram) child).snapshot().count : ((LongAdder) child).sum();
+        }
+    }
+
+    // Latencies in nanoseconds, e.g. histograms("lb_route_seconds", "type")
+    public static Family<LatencyHistogram> histograms(String name, String label) {
+        Family<LatencyHistogram> family = new Family<>(name, label, true, v -> new LatencyHistogram());
+        families.add(family);
+        return family;
+    }
+
+    public static Family<LongAdder> counters(String name, String label) {
+        Family<LongAdder> family = new Family<>(name, label, false, v -> new LongAdder());
+        families.add(family);
+        return family;
+    }
+
+    // One line per series: count, rate since the previous call, mean, percentiles and max in ms
+    public static synchronized String text() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastTextNanos) / 1e9);
+        lastTextNanos = now;
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("uptime=%ds interval=%.1fs%n",
+            TimeUnit.NANOSECONDS.toSeconds(now - startNanos), seconds));
+        for (Family<?> family : families) {
+            appendText(text, family, seconds);
+        }
+        return text.toString();
+    }
+
+    private static <T> void appendText(StringBuilder text, Family<T> family, double seconds) {
+        for (Map.Entry<String, T> entry : new TreeMap<>(family.children).entrySet()) {
+            String series = family.series(entry.getKey(), null);
+            if (family.histogram) {
+                LatencyHistogram.Snapshot snapshot = ((LatencyHistogram) entry.getValue()).snapshot();
+                text.append(series).append(String.format(" count=%d rate=%.1f/s mean=%.3fms", snapshot.count,
+                    rate(family, entry.getKey(), snapshot.count, seconds), snapshot.meanNanos() / 1e6));
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    text.append(String.format(" %s=%.3fms", QUANTILE_NAMES[i], snapshot.percentile(QUANTILES[i]) / 1e6));
+                }
+                text.append(String.format(" max=%.3fms%n", snapshot.maxNanos / 1e6));
+            } else {
+                long count = family.count(entry.getValue());
+                text.append(series).append(String.format(" count=%d rate=%.1f/s%n", count,
+                    rate(family, entry.getKey(), count, seconds)));
+            }
+        }
+    }
+
+    private static double rate(Family<?> family, String value, long count, double seconds) {
+        Long last = family.lastCounts.put(value, count);
+        return (count - (last != null ? last : 0)) / seconds;
+    }
+
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder();
+        for (Family<?> family : families) {
+            appendPrometheus(text, family);
+        }
+        return text.toString();
+    }
+
+    private static <T> void appendPrometheus(StringBuilder text, Family<T> family) {
+        if (family.children.isEmpty()) return;
+        text.append("# TYPE ").append(family.name).append(family.histogram ? " summary\n" : " counter\n");
+        for (Map.Entry<String, T> entry : new TreeMap<>(family.children).entrySet()) {
+            String value = entry.getKey();
+            if (family.histogram) {
+                LatencyHistogram.Snapshot snapshot = ((LatencyHistogram) entry.getValue()).snapshot();
+                for (double q : QUANTILES) {
+                    text.append(family.series(value, "quantile=\"" + q + "\"")).append(' ')
+                        .append(snapshot.percentile(q) / 1e9).append('\n');
+                }
+                String labels = family.label != null ? "{" + family.label + "=\"" + value + "\"}" : "";
+                text.append(family.name).append("_sum").append(labels).append(' ').append(snapshot.sumNanos / 1e9).append('\n');
+                text.append(family.name).append("_count").append(labels).append(' ').append(snapshot.count).append('\n');
+            } else {
+                text.append(family.series(value, null)).append(' ').append(family.count(entry.getValue())).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Non-blocking front end for the load balancer: a few selector loops instead of a thread per connection
+public class NioFrontEnd {
+    static final int MAX_LINE = 4096;
+    // Stop reading a pipelining client while this many reply bytes are waiting for it
+    private static final int MAX_PENDING_OUTPUT = 64 * 1024;
+
+    public static void start(int port, int loops) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing server channel: " + e.getMessage());
+            }
+        }));
+
+        EventLoop[] eventLoops = new EventLoop[loops];
+        for (int i = 0; i < loops; i++) {
+            eventLoops[i] = new EventLoop();
+            new Thread(eventLoops[i], "lb-event-loop-" + i).start();
+        }
+
+        // Accept on the calling thread and hand connections to the loops in turn
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            eventLoops[next].register(channel);
+            next = (next + 1) % loops;
+        }
+    }
+
+    // Per-connection state, attached to the selection key
+    private static class Connection {
+        final SocketChannel channel;
+        final Socket socket;
+        byte[] line = new byte[128];
+        int lineLength = 0;
+        Backend backend;
+        PeerSync.Inbound peer;
+        boolean closeAfterWrite = false;
+        // Replies waiting to be written, in write mode (position = bytes queued)
+        ByteBuffer outbound = ByteBuffer.allocate(256);
+        boolean started = false;
+        // Set once the client negotiates the binary protocol, holds a partially received frame
+        ByteBuffer frames;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.socket = channel.socket();
+        }
+    }
+
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Shared by every connection on this loop, bytes are copied out line by line
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+        // Binary frames are decoded into this one holder, it never outlives a frame
+        private final WireCodec.Message frame = new WireCodec.Message();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.attachment() instanceof ProxyRelay) {
+                            ProxyRelay relay = (ProxyRelay) key.attachment();
+                            try {
+                                relay.onReady(key);
+                            } catch (RuntimeException e) {
+                                AsyncLogger.WARN.log("Proxy relay failed: {}", e.getMessage());
+                                relay.abort();
+                            }
+                            continue;
+                        }
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                flush(key, conn);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(key, conn);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            AsyncLogger.WARN.log("Connection closed: {}", e.getMessage());
+                            close(key, conn);
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    AsyncLogger.ERROR.log("Event loop error: {}", e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                } catch (IOException e) {
+                    try { channel.close(); } catch (IOException ie) {}
+                }
+            }
+        }
+
+        private void read(SelectionKey key, Connection conn) throws IOException {
+            readBuffer.clear();
+            int n = conn.channel.read(readBuffer);
+            if (n < 0) {
+                close(key, conn);
+                return;
+            }
+            readBuffer.flip();
+
+            // The first byte of a connection picks the protocol
+            if (!conn.started && readBuffer.hasRemaining()) {
+                conn.started = true;
+                if (readBuffer.get(readBuffer.position()) == WireCodec.MAGIC) {
+                    readBuffer.get();
+                    conn.frames = ByteBuffer.allocate(WireCodec.MAX_FRAME + 8);
+                    ensureOutbound(conn, 1);
+                    conn.outbound.put(WireCodec.MAGIC);
+                }
+            }
+            if (conn.frames != null) {
+                readFrames(conn);
+                flush(key, conn);
+                return;
+            }
+
+            while (readBuffer.hasRemaining() && key.isValid()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int length = conn.lineLength;
+                    if (length > 0 && conn.line[length - 1] == '\r') length--;
+                    String message = new String(conn.line, 0, length, StandardCharsets.US_ASCII);
+                    conn.lineLength = 0;
+                    handleLine(key, conn, message);
+                } else {
+                    if (conn.lineLength == conn.line.length) {
+                        if (conn.line.length >= MAX_LINE) throw new IOException("Line too long");
+                        byte[] grown = new byte[Math.min(MAX_LINE, conn.line.length * 2)];
+                        System.arraycopy(conn.line, 0, grown, 0, conn.lineLength);
+                        conn.line = grown;
+                    }
+                    conn.line[conn.lineLength++] = b;
+                }
+            }
+
+            // One write for all replies to a pipelined batch
+            if (key.isValid() && key.attachment() == conn) {
+                flush(key, conn);
+            }
+        }
+
+        // Same message handling as LoadBalancer.handleConnection, without the dedicated thread
+        private void handleLine(SelectionKey key, Connection conn, String message) throws IOException {
+            if (conn.backend != null) {
+                if (!LoadBalancer.handleServerUpdate(conn.backend, message)) {
+                    close(key, conn);
+                }
+            } else if (conn.peer != null) {
+                conn.peer.apply(message);
+            } else if (message.startsWith("join")) {
+                conn.backend = LoadBalancer.registerServer(conn.socket, message);
+                queue(conn, "join_accepted\n");
+            } else if (message.startsWith("peer ")) {
+                conn.peer = new PeerSync.Inbound(conn.socket.getInetAddress().getHostAddress() + ":" + message.substring(5).trim());
+                queue(conn, "peer_accepted\n");
+            } else if (LoadBalancer.isLookup(message)) {
+                // Keep-alive lookups: the connection stays open for further REQUEST lines
+                queue(conn, LoadBalancer.handleLookup(message));
+            } else if (message.startsWith("PROXY") && conn.outbound.position() == 0) {
+                // Anything read past the PROXY line belongs to the server
+                ByteBuffer extra = ByteBuffer.allocate(readBuffer.remaining());
+                extra.put(readBuffer).flip();
+                ProxyRelay relay = LoadBalancer.openProxy(conn.channel, message, extra);
+                if (relay != null) {
+                    relay.register(selector, key);
+                } else {
+                    conn.closeAfterWrite = true;
+                    queue(conn, "NO_SERVER_AVAILABLE\n");
+                }
+            } else {
+                close(key, conn);
+            }
+        }
+
+        // Decode every complete frame in the read buffer straight into reply frames. Only a
+        // frame split across reads is copied, into the connection's small frames buffer.
+        private void readFrames(Connection conn) throws IOException {
+            while (true) {
+                ByteBuffer in = readBuffer;
+                if (conn.frames.position() > 0) {
+                    // Top up the partial frame from this read
+                    int n = Math.min(readBuffer.remaining(), conn.frames.remaining());
+                    int limit = readBuffer.limit();
+                    readBuffer.limit(readBuffer.position() + n);
+                    conn.frames.put(readBuffer);
+                    readBuffer.limit(limit);
+                    conn.frames.flip();
+                    in = conn.frames;
+                }
+
+                while (WireCodec.decode(in, frame)) {
+                    ensureOutbound(conn, 16);
+                    LoadBalancer.routeBinary(frame, conn.outbound);
+                }
+
+                if (in == readBuffer) {
+                    // Keep the incomplete tail for the next read
+                    conn.frames.put(readBuffer);
+                    return;
+                }
+                conn.frames.compact();
+                if (!readBuffer.hasRemaining()) return;
+            }
+        }
+
+        private void queue(Connection conn, String reply) {
+            byte[] bytes = reply.getBytes(StandardCharsets.US_ASCII);
+            ensureOutbound(conn, bytes.length);
+            conn.outbound.put(bytes);
+        }
+
+        private void ensureOutbound(Connection conn, int length) {
+            if (conn.outbound.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(conn.outbound.capacity() * 2, conn.outbound.position() + length));
+                conn.outbound.flip();
+                grown.put(conn.outbound);
+                conn.outbound = grown;
+            }
+        }
+
+        private void flush(SelectionKey key, Connection conn) throws IOException {
+            if (conn.outbound.position() > 0) {
+                conn.outbound.flip();
+                conn.channel.write(conn.outbound);
+                conn.outbound.compact();
+            }
+
+            int pending = conn.outbound.position();
+            if (pending == 0 && conn.closeAfterWrite) {
+                close(key, conn);
+                return;
+            }
+            int ops = pending < MAX_PENDING_OUTPUT ? SelectionKey.OP_READ : 0;
+            if (pending > 0) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        private void close(SelectionKey key, Connection conn) {
+            key.cancel();
+            if (conn.peer != null) {
+                conn.peer.close();
+            }
+            if (conn.backend != null) {
+                LoadBalancer.cleanupServer(conn.backend);
+            } else {
+                try { conn.channel.close(); } catch (IOException e) {}
+            }
+        }
+    }
+}
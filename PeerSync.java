@@ -0,0 +1,236 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Replicates the backend registry between load balancer instances (-peers). Every LB owns the
+// servers that joined it and pushes their joins, load reports and departures to each peer over
+// one outbound connection per peer, starting with a snapshot of all of them whenever that
+// connection is (re)established. A peer routes to those servers through mirror Backends that
+// take the forwarded reports exactly like reports from its own servers, so every LB sees every
+// server's load as of its last report. A peer's mirrors are dropped when its connection does;
+// the snapshot after the reconnect announces them again. Ejections of any server it routes to
+// are pushed as well, since clients report a failing server to just one LB; the peers are
+// expected to be listed on every LB, so nothing is relayed a second hop.
+//
+// After "peer <port>" is answered with "peer_accepted", the sender writes one line per event:
+//   up <port> <method> <host>   a server joined the sender
+//   report <port> <update>      a load report or busy notice the server sent to the sender
+//   down <port>                 the server left the sender
+//   eject <port> <ms> <reason>  the sender ejected the server (its own or a mirror) for ms,
+//                               on failures its clients reported; not passed on further
+//   ping                        keepalive while there is nothing else to send
+public class PeerSync {
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 1000;
+    private static final long KEEPALIVE_MILLIS = 1000;
+    // Events waiting for a slow peer; past this the link is dropped and resynced by snapshot
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+
+    static final Metrics.Family<LongAdder> messagesTotal = Metrics.counters("lb_peer_messages_total", "peer");
+
+    private static int selfPort;
+    private static final List<Link> links = new ArrayList<>();
+    // Servers joined to this LB, by port, for snapshots (ejected ones included)
+    private static final Map<Integer, Backend> local = new ConcurrentHashMap<>();
+
+    // Outbound connection to one peer, driven by its own thread
+    private static class Link implements Runnable {
+        final int port;
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        volatile Socket socket;
+
+        Link(int port) {
+            this.port = port;
+        }
+
+        public void run() {
+            boolean down = false;
+            while (true) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress("localhost", port), CONNECT_TIMEOUT_MILLIS);
+                    s.setTcpNoDelay(true);
+                    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                    out.write("peer " + selfPort + "\n");
+                    out.flush();
+                    if (!"peer_accepted".equals(in.readLine())) {
+                        throw new IOException("peer refused the link");
+                    }
+                    socket = s;
+                    // Events queued before the snapshot are contained in it
+                    queue.clear();
+                    int servers = writeSnapshot(out);
+                    out.flush();
+                    AsyncLogger.INFO.log("Peer link to {} up, announced {} servers", port, servers);
+                    down = false;
+
+                    while (true) {
+                        String line = queue.poll(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+                        out.write(line != null ? line : "ping\n");
+                        // Everything else already queued goes out with the same flush
+                        while ((line = queue.poll()) != null) {
+                            out.write(line);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (!down) {
+                        AsyncLogger.WARN.log("Peer link to {} down ({}), retrying every {}ms", port, e.getMessage(), RETRY_MILLIS);
+                        down = true;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                socket = null;
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void offer(String line) {
+            if (!queue.offer(line)) {
+                // The peer does not keep up: drop the link, the reconnect resends everything
+                Socket s = socket;
+                if (s != null) {
+                    AsyncLogger.WARN.log("Peer {} fell {} events behind, resyncing", port, QUEUE_CAPACITY);
+                    try { s.close(); } catch (IOException e) {}
+                }
+            }
+        }
+    }
+
+    // Connect to every peer and keep the links up for the life of the process
+    static void start(int port, int[] peerPorts) {
+        selfPort = port;
+        for (int peerPort : peerPorts) {
+            if (peerPort == port) continue;
+            Link link = new Link(peerPort);
+            links.add(link);
+            Thread t = new Thread(link, "lb-peer-" + peerPort);
+            t.setDaemon(true);
+            t.start();
+        }
+        if (!links.isEmpty()) {
+            AsyncLogger.INFO.log("Sharing servers with {} peers", links.size());
+        }
+    }
+
+    static boolean isLocal(int port) {
+        return local.containsKey(port);
+    }
+
+    static void publishUp(Backend backend) {
+        local.put(backend.port, backend);
+        if (!links.isEmpty()) {
+            publish(upLine(backend));
+        }
+    }
+
+    static void publishReport(Backend backend, String update) {
+        if (links.isEmpty()) return;
+        if (update.startsWith("load=")) {
+            // Learned costs are increments, a snapshot must not hand them out a second time
+            int cost = update.indexOf(" cost=");
+            backend.lastReport = cost < 0 ? update : update.substring(0, cost);
+        }
+        publish("report " + backend.port + " " + update + "\n");
+    }
+
+    static void publishDown(Backend backend) {
+        // A server that rejoined on the same port replaced this entry already
+        if (local.remove(backend.port, backend) && !links.isEmpty()) {
+            publish("down " + backend.port + "\n");
+        }
+    }
+
+    static void publishEject(Backend backend, long duration, String reason) {
+        if (!links.isEmpty()) {
+            publish("eject " + backend.port + " " + duration + " " + reason + "\n");
+        }
+    }
+
+    private static void publish(String line) {
+        for (Link link : links) {
+            link.offer(line);
+        }
+    }
+
+    private static String upLine(Backend backend) {
+        return "up " + backend.port + " " + backend.balancingMethod + " " +
+               backend.address().getAddress().getHostAddress() + "\n";
+    }
+
+    private static int writeSnapshot(Writer out) throws IOException {
+        int servers = 0;
+        for (Backend backend : local.values()) {
+            out.write(upLine(backend));
+            String report = backend.lastReport;
+            if (report != null) {
+                out.write("report " + backend.port + " " + report + "\n");
+            }
+            servers++;
+        }
+        return servers;
+    }
+
+    // Receiving end of a peer's link: keeps that peer's servers as mirrors in the routing table.
+    // Used by one connection's thread (or event loop) at a time.
+    static class Inbound {
+        final String peer;
+        private final Map<Integer, Backend> mirrors = new HashMap<>();
+        private final LongAdder messages;
+
+        Inbound(String peer) {
+            this.peer = peer;
+            this.messages = messagesTotal.get(peer);
+            AsyncLogger.INFO.log("Peer {} connected", peer);
+        }
+
+        void apply(String line) throws IOException {
+            messages.increment();
+            if (line.startsWith("report ")) {
+                int space = line.indexOf(' ', 7);
+                Backend mirror = space > 0 ? mirrors.get(Integer.parseInt(line, 7, space, 10)) : null;
+                if (mirror != null) {
+                    LoadBalancer.handleServerUpdate(mirror, line.substring(space + 1));
+                }
+            } else if (line.startsWith("up ")) {
+                String[] parts = line.split(" ");
+                int port = Integer.parseInt(parts[1]);
+                if (parts.length >= 4 && !mirrors.containsKey(port)) {
+                    Backend mirror = LoadBalancer.registerMirror(peer, InetAddress.getByName(parts[3]), port, parts[2]);
+                    if (mirror != null) {
+                        mirrors.put(port, mirror);
+                    }
+                }
+            } else if (line.startsWith("down ")) {
+                Backend mirror = mirrors.remove(Integer.parseInt(line.substring(5).trim()));
+                if (mirror != null && LoadBalancer.cleanupServer(mirror)) {
+                    AsyncLogger.INFO.log("Server on port {} left peer {}", mirror.port, peer);
+                }
+            } else if (line.startsWith("eject ")) {
+                String[] parts = line.split(" ");
+                if (parts.length >= 3) {
+                    LoadBalancer.ejectFromPeer(peer, Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+                }
+            } else if (!line.equals("ping")) {
+                AsyncLogger.WARN.log("Unknown message from peer {}: {}", peer, line);
+            }
+        }
+
+        void close() {
+            for (Backend mirror : mirrors.values()) {
+                LoadBalancer.cleanupServer(mirror);
+            }
+            if (!mirrors.isEmpty()) {
+                AsyncLogger.INFO.log("Peer {} disconnected, dropped its {} servers", peer, mirrors.size());
+            }
+            mirrors.clear();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Relays raw bytes between a proxied client and its server in both directions.
+// Driven by selector readiness, either inside an NioFrontEnd event loop or on its own
+// selector (runBlocking) for the thread-per-connection front end. Bytes are copied
+// channel to channel through pooled direct buffers, never decoded into Strings; only the
+// server's first reply line is looked at, so a BUSY refusal or a failed connect can be retried
+// on another server.
+public class ProxyRelay {
+    static final int BUFFER_SIZE = 16 * 1024;
+    private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private static final byte[] BUSY = "BUSY".getBytes(StandardCharsets.US_ASCII);
+
+    // Hears how the server side of the request went. retry is consulted when the server answers
+    // BUSY or the connection to it fails before any reply, and returns the next server to send
+    // the request to, or null to give up. replied reports how long the first reply line took.
+    public interface RetryHandler {
+        InetSocketAddress retry(String reason);
+
+        void replied(long nanos);
+    }
+
+    private final SocketChannel client;
+    private SocketChannel server;
+    private final Runnable onComplete;
+    private final RetryHandler handler;
+    // The first bytes, kept to replay them to another server after a BUSY
+    private final ByteBuffer request;
+    private Selector selector;
+    private long connectStart;
+    private ByteBuffer toServer;
+    private ByteBuffer toClient;
+
+    private SelectionKey clientKey;
+    private SelectionKey serverKey;
+    private boolean connected = false;
+    private boolean clientEof = false;
+    private boolean serverEof = false;
+    private boolean serverOutputShut = false;
+    private boolean finished = false;
+    // Set once the first reply line has been seen; until then nothing is relayed to the client
+    private boolean replyStarted = false;
+    // Client bytes read after the first ones, a request that sent more cannot be replayed
+    private boolean clientSentMore = false;
+
+    // Opens a non-blocking connection to the server and queues the first bytes for it
+    public ProxyRelay(SocketChannel client, InetSocketAddress serverAddress, ByteBuffer firstBytes,
+                      RetryHandler handler, Runnable onComplete) throws IOException {
+        this.client = client;
+        this.handler = handler;
+        this.onComplete = onComplete;
+        this.request = firstBytes.duplicate();
+        // First bytes beyond a pooled buffer (a long line plus what followed it) get a buffer of
+        // their own, which is not pooled afterwards
+        this.toServer = firstBytes.remaining() <= BUFFER_SIZE ? takeBuffer() : ByteBuffer.allocateDirect(firstBytes.remaining());
+        this.toClient = takeBuffer();
+        this.toServer.put(firstBytes);
+
+        try {
+            connect(serverAddress);
+        } catch (IOException e) {
+            releaseBuffers();
+            throw e;
+        }
+    }
+
+    private void connect(InetSocketAddress serverAddress) throws IOException {
+        connectStart = System.nanoTime();
+        server = SocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            server.socket().setTcpNoDelay(true);
+            connected = server.connect(serverAddress);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    // Register both channels on a selector; the client key may already belong to it
+    public void register(Selector selector, SelectionKey existingClientKey) throws IOException {
+        this.selector = selector;
+        client.configureBlocking(false);
+        clientKey = existingClientKey != null ? existingClientKey : client.register(selector, 0);
+        clientKey.attach(this);
+        serverKey = server.register(selector, 0, this);
+        updateInterest();
+    }
+
+    // Relay on a private selector until the server finishes its response
+    public void runBlocking() {
+        try (Selector selector = Selector.open()) {
+            register(selector, null);
+            while (!finished) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext() && !finished) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    onReady(key);
+                }
+            }
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    public void onReady(SelectionKey key) {
+        // The other side's key can still be in this round's selected set after finish()
+        if (finished) return;
+        try {
+            if (key == serverKey && key.isValid() && key.isConnectable()) {
+                try {
+                    connected = server.finishConnect();
+                } catch (IOException e) {
+                    if (!canRetry() || !retryElsewhere("CONNECT_FAILED " + e.getMessage())) throw e;
+                    return;
+                }
+            }
+            pump();
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    public void abort() {
+        finish();
+    }
+
+    private void pump() throws IOException {
+        // Client -> server
+        if (!clientEof && toServer.hasRemaining()) {
+            int n = client.read(toServer);
+            if (n < 0) clientEof = true;
+            else if (n > 0) clientSentMore = true;
+        }
+        if (connected && toServer.position() > 0) {
+            toServer.flip();
+            server.write(toServer);
+            toServer.compact();
+        }
+        if (clientEof && connected && toServer.position() == 0 && !serverOutputShut) {
+            server.shutdownOutput();
+            serverOutputShut = true;
+        }
+
+        // Server -> client
+        if (connected && !serverEof && toClient.hasRemaining()) {
+            if (server.read(toClient) < 0) serverEof = true;
+        }
+        if (!replyStarted && toClient.position() > 0) {
+            int lineEnd = firstLineEnd();
+            if (lineEnd < 0 && !serverEof && toClient.hasRemaining()) {
+                // Wait for the rest of the first line
+                updateInterest();
+                return;
+            }
+            replyStarted = true;
+            if (lineEnd >= 0 && isBusy() && canRetry() && retryElsewhere(firstLine(lineEnd))) {
+                return;
+            }
+            if (handler != null) handler.replied(System.nanoTime() - connectStart);
+        }
+        if (replyStarted && toClient.position() > 0) {
+            toClient.flip();
+            client.write(toClient);
+            toClient.compact();
+        }
+
+        if (serverEof && toClient.position() == 0) {
+            finish();
+            return;
+        }
+        updateInterest();
+    }
+
+    // Index of the newline ending the first reply line in toClient, -1 until it arrived
+    private int firstLineEnd() {
+        for (int i = 0; i < toClient.position(); i++) {
+            if (toClient.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private boolean isBusy() {
+        if (toClient.position() < BUSY.length) return false;
+        for (int i = 0; i < BUSY.length; i++) {
+            if (toClient.get(i) != BUSY[i]) return false;
+        }
+        return true;
+    }
+
+    private String firstLine(int lineEnd) {
+        byte[] reply = new byte[lineEnd];
+        for (int i = 0; i < lineEnd; i++) {
+            reply[i] = toClient.get(i);
+        }
+        return new String(reply, StandardCharsets.US_ASCII).trim();
+    }
+
+    // Only a request whose bytes are all still in hand can be sent again
+    private boolean canRetry() {
+        return handler != null && !clientSentMore;
+    }
+
+    // Drop the current server and replay the request to the one the handler picks; false to
+    // carry on with the current one (relay its BUSY, or fail)
+    private boolean retryElsewhere(String reason) throws IOException {
+        InetSocketAddress next = handler.retry(reason);
+        if (next == null) return false;
+
+        serverKey.cancel();
+        try { server.close(); } catch (IOException e) {}
+        toClient.clear();
+        toServer.clear();
+        toServer.put(request.duplicate());
+        serverEof = false;
+        serverOutputShut = false;
+        replyStarted = false;
+        connect(next);
+        serverKey = server.register(selector, 0, this);
+        updateInterest();
+        return true;
+    }
+
+    private void updateInterest() {
+        // Stop reading a side while the buffer it fills is full, that is the backpressure
+        int clientOps = 0;
+        if (!clientEof && toServer.hasRemaining()) clientOps |= SelectionKey.OP_READ;
+        if (replyStarted && toClient.position() > 0) clientOps |= SelectionKey.OP_WRITE;
+
+        int serverOps;
+        if (!connected) {
+            serverOps = SelectionKey.OP_CONNECT;
+        } else {
+            serverOps = 0;
+            if (!serverEof && toClient.hasRemaining()) serverOps |= SelectionKey.OP_READ;
+            if (toServer.position() > 0) serverOps |= SelectionKey.OP_WRITE;
+        }
+
+        clientKey.interestOps(clientOps);
+        serverKey.interestOps(serverOps);
+    }
+
+    private void finish() {
+        if (finished) return;
+        finished = true;
+        if (clientKey != null) clientKey.cancel();
+        if (serverKey != null) serverKey.cancel();
+        try { client.close(); } catch (IOException e) {}
+        try { server.close(); } catch (IOException e) {}
+        releaseBuffers();
+        onComplete.run();
+    }
+
+    private void releaseBuffers() {
+        if (toServer != null && toServer.capacity() == BUFFER_SIZE) bufferPool.offer(toServer);
+        if (toClient != null) bufferPool.offer(toClient);
+        toServer = null;
+        toClient = null;
+    }
+
+    private static ByteBuffer takeBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// The LB's backend registry in a small memory-mapped file (-snapshot), so a restarted LB can
+// route right away instead of answering NO_SERVER_AVAILABLE until every server has rejoined.
+// Holds the servers joined to this LB (port, host, balancing method, last load) and the learned
+// request costs. Writes go to the page cache only: they survive the LB process, which is what a
+// restart needs, without an fsync per write.
+//
+// Two slots are written alternately, each with a generation and a CRC32 of its contents, so an
+// LB killed halfway through a write still leaves the previous slot to restore from.
+//
+// File: magic, version, then two slots of
+//   generation (long), written at (ms, long), servers (int), costs (int), crc (int), padding
+//   servers: port (int), load (int), host length + 16 address bytes, method length + 22 bytes
+//   costs:   bucket key length + 31 bytes, ms per unit (double), error EWMA (double), samples (long)
+public class RegistrySnapshot {
+    private static final int MAGIC = 0x4C425253; // "LBRS"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 8;
+    private static final int SLOT_HEADER = 32;
+    private static final int SERVER_RECORD = 48;
+    private static final int METHOD_BYTES = 22;
+    private static final int COST_RECORD = 56;
+    private static final int KEY_BYTES = 31;
+    static final int MAX_SERVERS = 1024;
+    static final int MAX_COSTS = 256;
+    private static final int SLOT_SIZE = SLOT_HEADER + MAX_SERVERS * SERVER_RECORD + MAX_COSTS * COST_RECORD;
+
+    // A server as the snapshot remembers it
+    static class Entry {
+        final int port;
+        final InetAddress host;
+        final String balancingMethod;
+        final int load;
+
+        Entry(int port, InetAddress host, String balancingMethod, int load) {
+            this.port = port;
+            this.host = host;
+            this.balancingMethod = balancingMethod;
+            this.load = load;
+        }
+    }
+
+    private final Path file;
+    private final MappedByteBuffer map;
+    // Slot contents are assembled here first, so the CRC covers exactly what gets copied
+    private final ByteBuffer scratch = ByteBuffer.allocate(SLOT_SIZE - SLOT_HEADER);
+    private final CRC32 crc = new CRC32();
+    private long generation;
+    private boolean truncationLogged;
+
+    RegistrySnapshot(Path file) throws IOException {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            boolean fresh = channel.size() != FILE_HEADER + 2L * SLOT_SIZE;
+            // The mapping stays valid after the channel is closed
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER + 2L * SLOT_SIZE);
+            if (fresh || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                // New file, or one of another layout: start with two empty slots
+                map.putLong(slotOffset(0), 0);
+                map.putLong(slotOffset(1), 0);
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+            }
+        }
+    }
+
+    private static int slotOffset(int slot) {
+        return FILE_HEADER + slot * SLOT_SIZE;
+    }
+
+    // Servers of the newest intact slot, empty when there is none; its learned costs go into
+    // costs right away
+    synchronized List<Entry> restore(CostEstimator costs) {
+        int best = -1;
+        for (int slot = 0; slot < 2; slot++) {
+            int offset = slotOffset(slot);
+            if (isIntact(offset) && (best < 0 || map.getLong(offset) > map.getLong(slotOffset(best)))) {
+                best = slot;
+            }
+        }
+        List<Entry> entries = new ArrayList<>();
+        if (best < 0) return entries;
+
+        int offset = slotOffset(best);
+        generation = map.getLong(offset);
+        long writtenAt = map.getLong(offset + 8);
+        int servers = map.getInt(offset + 16);
+        int costCount = map.getInt(offset + 20);
+        ByteBuffer body = map.duplicate();
+        body.position(offset + SLOT_HEADER);
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < servers; i++) {
+            int port = body.getInt();
+            int load = body.getInt();
+            int hostLength = body.get();
+            body.get(bytes, 0, 16);
+            InetAddress host;
+            try {
+                host = InetAddress.getByAddress(Arrays.copyOf(bytes, hostLength));
+            } catch (IOException e) {
+                host = InetAddress.getLoopbackAddress();
+            }
+            int methodLength = body.get();
+            body.get(bytes, 0, METHOD_BYTES);
+            entries.add(new Entry(port, host, new String(bytes, 0, methodLength, StandardCharsets.US_ASCII), load));
+        }
+        for (int i = 0; i < costCount; i++) {
+            int keyLength = body.get();
+            body.get(bytes, 0, KEY_BYTES);
+            costs.restore(new String(bytes, 0, keyLength, StandardCharsets.US_ASCII),
+                          body.getDouble(), body.getDouble(), body.getLong());
+        }
+        AsyncLogger.INFO.log("Registry snapshot {}: {} servers and {} learned costs from {}ms ago",
+                             file, servers, costCount, System.currentTimeMillis() - writtenAt);
+        return entries;
+    }
+
+    private boolean isIntact(int offset) {
+        long slotGeneration = map.getLong(offset);
+        int servers = map.getInt(offset + 16);
+        int costCount = map.getInt(offset + 20);
+        if (slotGeneration <= 0 || servers < 0 || servers > MAX_SERVERS || costCount < 0 || costCount > MAX_COSTS) {
+            return false;
+        }
+        ByteBuffer body = map.duplicate();
+        body.position(offset + SLOT_HEADER).limit(offset + SLOT_HEADER + servers * SERVER_RECORD + costCount * COST_RECORD);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue() == map.getInt(offset + 24);
+    }
+
+    // Overwrite the older slot with the given servers (mirrors of peers' servers are skipped)
+    // and costs. Cheap enough to run every second: a copy into the page cache.
+    synchronized void write(Backend[] servers, CostEstimator costs) {
+        scratch.clear();
+        int serverCount = 0;
+        for (Backend backend : servers) {
+            if (backend.owner != null) continue; // peers announce their own servers
+            if (serverCount == MAX_SERVERS) {
+                logTruncation("servers", MAX_SERVERS);
+                break;
+            }
+            byte[] host = backend.address().getAddress().getAddress();
+            byte[] method = backend.balancingMethod.getBytes(StandardCharsets.US_ASCII);
+            int methodLength = Math.min(method.length, METHOD_BYTES);
+            scratch.putInt(backend.port).putInt(backend.load.get());
+            scratch.put((byte) host.length).put(host).position(scratch.position() + 16 - host.length);
+            scratch.put((byte) methodLength).put(method, 0, methodLength);
+            scratch.position(scratch.position() + METHOD_BYTES - methodLength);
+            serverCount++;
+        }
+        int[] costCount = {0};
+        costs.forEach((bucketKey, unitMillis, errorEwma, samples) -> {
+            byte[] key = bucketKey.getBytes(StandardCharsets.US_ASCII);
+            if (key.length > KEY_BYTES) return;
+            if (costCount[0] == MAX_COSTS) {
+                logTruncation("learned costs", MAX_COSTS);
+                return;
+            }
+            scratch.put((byte) key.length).put(key).position(scratch.position() + KEY_BYTES - key.length);
+            scratch.putDouble(unitMillis).putDouble(errorEwma).putLong(samples);
+            costCount[0]++;
+        });
+        scratch.flip();
+        crc.reset();
+        crc.update(scratch.duplicate());
+
+        // Body first, header last: a slot is only picked up once its header matches the body
+        generation++;
+        int offset = slotOffset((int) (generation & 1));
+        map.putLong(offset, 0);
+        map.put(offset + SLOT_HEADER, scratch, 0, scratch.limit());
+        map.putLong(offset + 8, System.currentTimeMillis());
+        map.putInt(offset + 16, serverCount);
+        map.putInt(offset + 20, costCount[0]);
+        map.putInt(offset + 24, (int) crc.getValue());
+        map.putLong(offset, generation);
+    }
+
+    private void logTruncation(String what, int max) {
+        if (!truncationLogged) {
+            AsyncLogger.WARN.log("Registry snapshot keeps at most {} {}, the rest is not restored", max, what);
+            truncationLogged = true;
+        }
+    }
+}
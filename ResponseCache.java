@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Bounded cache of fully encoded responses (the directory listing, small files) kept in direct
+// buffers, so a hit is one socket write with no encoding or file read. Evicts least recently
+// used entries by total size. Callers get read-only duplicates and never share a position.
+public class ResponseCache {
+    public interface Loader {
+        ByteBuffer load() throws IOException;
+    }
+
+    private final long capacity;
+    private final long maxEntry;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytesHeld = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    // Bumped by every invalidation, a load that started before one is not cached
+    private long generation = 0;
+
+    public ResponseCache(long capacity, long maxEntry) {
+        this.capacity = capacity;
+        this.maxEntry = maxEntry;
+    }
+
+    // Whether a response of this many bytes would be cached at all
+    public boolean admits(long size) {
+        return size <= maxEntry && size <= capacity;
+    }
+
+    // Returns the cached response positioned at 0, loading it on a miss. Concurrent misses for
+    // the same key may both load; the last one wins.
+    public ByteBuffer get(String key, Loader loader) throws IOException {
+        long loadGeneration;
+        synchronized (this) {
+            ByteBuffer cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached.duplicate();
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        ByteBuffer loaded = loader.load().asReadOnlyBuffer();
+        if (admits(loaded.remaining())) {
+            synchronized (this) {
+                if (generation == loadGeneration) put(key, loaded);
+            }
+        }
+        return loaded.duplicate();
+    }
+
+    private void put(String key, ByteBuffer value) {
+        ByteBuffer previous = entries.put(key, value);
+        if (previous != null) bytesHeld -= previous.capacity();
+        bytesHeld += value.capacity();
+
+        Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+        while (bytesHeld > capacity && eldest.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = eldest.next();
+            bytesHeld -= entry.getValue().capacity();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        generation++;
+        ByteBuffer removed = entries.remove(key);
+        if (removed != null) bytesHeld -= removed.capacity();
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        bytesHeld = 0;
+    }
+
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("entries=%d bytes=%d/%d hits=%d misses=%d hitRate=%.1f%% evictions=%d",
+            entries.size(), bytesHeld, capacity, hits, misses, lookups > 0 ? hits * 100.0 / lookups : 0.0, evictions);
+    }
+
+    // Prints the stats every interval while they change. With a dir, also drops cached responses
+    // when its files change: the changed file's entry via keyFor and the listing via listingKey.
+    public void startWatcher(Path dir, String listingKey, Function<String, String> keyFor,
+                             long statsIntervalSeconds) throws IOException {
+        WatchService watcher = null;
+        if (dir != null) {
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                         StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+
+        final WatchService finalWatcher = watcher;
+        Thread thread = new Thread(() -> {
+            String lastStats = null;
+            try {
+                while (true) {
+                    WatchKey key = null;
+                    if (finalWatcher != null) {
+                        key = finalWatcher.poll(statsIntervalSeconds, TimeUnit.SECONDS);
+                    } else {
+                        TimeUnit.SECONDS.sleep(statsIntervalSeconds);
+                    }
+                    if (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                clear();
+                            } else {
+                                invalidate(keyFor.apply(event.context().toString()));
+                                invalidate(listingKey);
+                            }
+                        }
+                        key.reset();
+                    }
+
+                    String current = stats();
+                    if (!current.equals(lastStats)) {
+                        AsyncLogger.INFO.log("Cache stats: {}", current);
+                        lastStats = current;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Stop watching
+            }
+        }, "response-cache-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
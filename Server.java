@@ -1,150 +1,808 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Server {
     private static AtomicInteger currentLoad = new AtomicInteger(0);
+    // Requests accepted since startup, reported as seq so the LB can reconcile its in-flight count
+    private static AtomicLong acceptedRequests = new AtomicLong(0);
     private static String[] fileList = {"document1.pdf", "image1.jpg", "video1.mp4", "data.csv", "presentation.pptx"};
+    // Content directory (-dir): DIRECTORY lists it and FILE_TRANSFER serves its files.
+    // Without it both keep their simulated responses.
+    private static Path contentDir;
+    // How file bytes reach the socket (-fileio): "auto" uses transferTo and memory-mapped regions
+    // for files of MAP_THRESHOLD and up, "transfer" and "mmap" force one, "stream" copies
+    // through buffered streams
+    private static String fileIo = "auto";
+    static final long MAP_THRESHOLD = 64L * 1024 * 1024;
+    private static final long MAP_REGION = 16L * 1024 * 1024;
+    // Encoded DIRECTORY listing and files up to CACHE_MAX_ENTRY (-cache <MB>, 0 disables)
+    private static ResponseCache responseCache;
+    private static final String LISTING_KEY = "DIRECTORY";
+    private static final long CACHE_MAX_ENTRY = 1024 * 1024;
+    // Runs handleClient for each connection, see ExecutionMode (-exec platform|pool:<n>|virtual)
+    private static ExecutionMode execution;
+
+    // VIDEO_STREAMING and COMPUTATION responses are paced by timing wheels (-stream wheel, the
+    // default) instead of a sleeping thread per session (-stream thread)
+    private static TimingWheel[] streamWheels;
+    private static final AtomicInteger nextWheel = new AtomicInteger(0);
+    private static final AtomicInteger activeStreams = new AtomicInteger(0);
+    private static final AtomicLong framesSent = new AtomicLong(0);
+    private static final AtomicLong framesDropped = new AtomicLong(0);
+
+    // Per-type admission limits (-bulkhead TYPE=limit[:queue],... or "default"); types without
+    // one are admitted unconditionally. A refused request gets a BUSY reply, and the LB hears
+    // about it on the join connection so it routes that type elsewhere until the next report.
+    static final String DEFAULT_BULKHEADS = "DIRECTORY=64:256,FILE_TRANSFER=32:64,COMPUTATION=8:8,VIDEO_STREAMING=16:0";
+    private static Map<String, Bulkhead> bulkheads = Collections.emptyMap();
+    // Types already reported busy since the last load report
+    private static final Set<String> busyReported = ConcurrentHashMap.newKeySet();
+    private static volatile BufferedWriter loadBalancerOut;
+    private static volatile Socket loadBalancer;
+    private static volatile boolean stopping;
+    // Backoff between rounds of join attempts over all listed LBs, with jitter so servers that
+    // lost the same LB do not all come back in the same millisecond
+    static final long JOIN_BACKOFF_MIN_MILLIS = 100;
+    static final long JOIN_BACKOFF_MAX_MILLIS = 5000;
+    // Service times of completed requests, reported with the load so the LB learns real costs
+    private static final CostEstimator.Samples serviceTimes = new CostEstimator.Samples();
+    // Series behind the STATS command (see Metrics): time from accept until the request was
+    // admitted (session queue, request read, bulkhead wait), service time and refusals per type
+    static final Metrics.Family<LatencyHistogram> queueLatency = Metrics.histograms("server_queue_seconds", "type");
+    static final Metrics.Family<LatencyHistogram> serviceLatency = Metrics.histograms("server_service_seconds", "type");
+    static final Metrics.Family<LongAdder> refusedTotal = Metrics.counters("server_refused_total", "type");
+    // Load reports go out when the load moved by -reportDelta requests or -reportPercent of the
+    // last report, coalesced over -coalesce ms, and at least every -keepalive ms
+    private static LoadReporter loadReporter;
+
+    // COMPUTATION on a fork/join pool (-compute kernel, the default), null when it is simulated
+    // by pacing progress lines (-compute sleep)
+    private static ComputeKernel computeKernel;
+    static final long PROGRESS_MILLIS = 1000;
+    // How often a running computation checks that its client is still there
+    static final long CANCEL_CHECK_MILLIS = 100;
+    private static final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
     
     public static void main(String[] args) throws IOException {
         int port = args.length > 0 ? Integer.parseInt(args[0]) : 7001;
         String balancingMethod = "dynamic"; // default
+        String executionMode = "platform";
+        String streamMode = "wheel";
+        String computeMode = "kernel";
+        int computeThreads = Runtime.getRuntime().availableProcessors();
+        int streamThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        long cacheMb = 64;
+        int reportDelta = 2;
+        int reportPercent = 10;
+        long coalesceMillis = 50;
+        long keepaliveMillis = 5000;
+        // Load balancers to join, tried in order (-lb 9001,9002,9003); LBs started with -peers
+        // share the servers that joined any of them
+        int[] lbPorts = {9001};
+        // Console logging: -log <debug|request|info|warn|error|off>, -logSample <n> keeps one
+        // in n per-request lines
+        String logLevel = "request";
+        int logSample = 1;
         
         // Parse command line arguments
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-v") && i + 1 < args.length) {
                 balancingMethod = args[i + 1];
+            } else if (args[i].equals("-exec") && i + 1 < args.length) {
+                executionMode = args[i + 1];
+            } else if (args[i].equals("-stream") && i + 1 < args.length) {
+                streamMode = args[i + 1];
+            } else if (args[i].equals("-compute") && i + 1 < args.length) {
+                computeMode = args[i + 1];
+            } else if (args[i].equals("-computeThreads") && i + 1 < args.length) {
+                computeThreads = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("-streamThreads") && i + 1 < args.length) {
+                streamThreads = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("-dir") && i + 1 < args.length) {
+                contentDir = Paths.get(args[i + 1]).toAbsolutePath().normalize();
+            } else if (args[i].equals("-fileio") && i + 1 < args.length) {
+                fileIo = args[i + 1];
+            } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                cacheMb = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("-reportDelta") && i + 1 < args.length) {
+                reportDelta = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-reportPercent") && i + 1 < args.length) {
+                reportPercent = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-coalesce") && i + 1 < args.length) {
+                coalesceMillis = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("-keepalive") && i + 1 < args.length) {
+                keepaliveMillis = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("-bulkhead") && i + 1 < args.length) {
+                bulkheads = Bulkhead.parse(args[i + 1].equals("default") ? DEFAULT_BULKHEADS : args[i + 1]);
+            } else if (args[i].equals("-lb") && i + 1 < args.length) {
+                String[] ports = args[i + 1].split(",");
+                lbPorts = new int[ports.length];
+                for (int p = 0; p < ports.length; p++) {
+                    lbPorts[p] = Integer.parseInt(ports[p].trim());
+                }
+            } else if (args[i].equals("-log") && i + 1 < args.length) {
+                logLevel = args[i + 1];
+            } else if (args[i].equals("-logSample") && i + 1 < args.length) {
+                logSample = Integer.parseInt(args[i + 1]);
             }
         }
+        AsyncLogger.configure(logLevel, logSample);
+        execution = ExecutionMode.parse(executionMode, "server-session");
+        if (streamMode.equals("wheel")) {
+            startStreamWheels(streamThreads);
+        }
+        if (computeMode.equals("kernel")) {
+            computeKernel = new ComputeKernel(computeThreads);
+            AsyncLogger.INFO.log("Compute kernel: {} threads, {}M steps per unit", computeKernel.parallelism(),
+                                 computeKernel.stepsPerUnit() / 1_000_000);
+        }
+        if (cacheMb > 0) {
+            responseCache = new ResponseCache(cacheMb * 1024 * 1024, CACHE_MAX_ENTRY);
+            responseCache.startWatcher(contentDir, LISTING_KEY, Server::fileKey, 10);
+        }
         
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Server running on port " + port + " with " + balancingMethod + " balancing");
-
-        // Connect to load balancer with retry logic
-        Socket lb = null;
-        BufferedWriter lbOut = null;
-        
-        for (int attempt = 0; attempt < 5; attempt++) {
-            try {
-                lb = new Socket("localhost", 9001);
-                lbOut = new BufferedWriter(new OutputStreamWriter(lb.getOutputStream()));
-                lbOut.write("join -v " + balancingMethod + " port=" + port + "\n");
-                lbOut.flush();
-                
-                BufferedReader lbIn = new BufferedReader(new InputStreamReader(lb.getInputStream()));
-                String response = lbIn.readLine();
-                if ("join_accepted".equals(response)) {
-                    System.out.println("Successfully registered with load balancer");
-                    break;
-                } else {
-                    System.out.println("Load balancer rejected registration: " + response);
-                }
-            } catch (IOException e) {
-                System.out.println("Failed to connect to load balancer, attempt " + (attempt + 1));
-                if (attempt < 4) {
-                    try { Thread.sleep(2000); } catch (InterruptedException ie) {}
-                } else {
-                    System.out.println("Could not connect to load balancer after 5 attempts");
-                    System.exit(1);
-                }
-            }
+        // Large backlog so bursts of thousands of sessions are not refused before accept().
+        // Channel-backed sockets, so streamed responses can switch to non-blocking writes.
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(port), 1024);
+        AsyncLogger.INFO.log("Server running on port {} with {} balancing ({})", port, balancingMethod,
+                             execution.name() + " sessions, " +
+                             (streamWheels != null ? streamWheels.length + " stream wheels" : "thread per stream") +
+                             (contentDir != null ? ", serving " + contentDir + " via " + fileIo : ""));
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            AsyncLogger.INFO.log("Bulkhead {}", bulkhead.stats());
         }
 
-        final BufferedWriter finalLbOut = lbOut;
-        final Socket finalLb = lb;
-
         // Add shutdown hook for graceful exit
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
-                finalLbOut.write("goodbye\n");
-                finalLbOut.flush();
-                finalLb.close();
+                stopping = true;
+                BufferedWriter lbOut = loadBalancerOut;
+                Socket lb = loadBalancer;
+                if (lbOut != null && lb != null) {
+                    lbOut.write("goodbye\n");
+                    lbOut.flush();
+                    lb.close();
+                }
                 serverSocket.close();
-                System.out.println("Server shutdown gracefully");
+                AsyncLogger.INFO.log("Execution stats: {}", execution.stats());
+                AsyncLogger.INFO.log("Report stats: {}", loadReporter.stats());
+                if (computeKernel != null) {
+                    AsyncLogger.INFO.log("Compute stats: {}", computeKernel.stats());
+                }
+                if (!bulkheads.isEmpty()) {
+                    AsyncLogger.INFO.log("Bulkhead stats: {}", bulkheadStats());
+                }
+                AsyncLogger.INFO.log("Logger stats: {}", AsyncLogger.stats());
+                AsyncLogger.INFO.log("Server shutdown gracefully");
+                AsyncLogger.flush();
             } catch (IOException e) {
                 System.err.println("Error during shutdown: " + e.getMessage());
             }
         }));
 
         // Load balancer'a yük bilgisi gönder
-        new Thread(() -> {
-            try {
-                while (true) {
-                    Thread.sleep(5000);
-                    int load = currentLoad.get();
-                    finalLbOut.write("load=" + load + "\n");
-                    finalLbOut.flush();
+        loadReporter = new LoadReporter("load-reporter", currentLoad::get,
+            load -> "load=" + load + " seq=" + acceptedRequests.get() + cpuUsage() + saturatedTypes() +
+                    serviceTimes.drain() + "\n",
+            report -> {
+                // Not joined right now: the next join is followed by a fresh report anyway
+                BufferedWriter lbOut = loadBalancerOut;
+                if (lbOut == null) return;
+                try {
+                    lbOut.write(report);
+                    lbOut.flush();
+                } catch (IOException e) {
+                    // Wakes up the join thread, which joins again
+                    Socket lb = loadBalancer;
+                    try { if (lb != null) lb.close(); } catch (IOException ie) {}
                 }
-            } catch (Exception e) {
-                System.out.println("Lost connection to load balancer: " + e.getMessage());
-                try { finalLb.close(); } catch (IOException ie) {}
-            }
-        }).start();
+            }, reportDelta, reportPercent, coalesceMillis, keepaliveMillis);
+        loadReporter.start();
+
+        String join = "join -v " + balancingMethod + " port=" + port + "\n";
+        int[] joinPorts = lbPorts;
+        Thread joiner = new Thread(() -> stayJoined(joinPorts, join), "lb-join");
+        joiner.setDaemon(true);
+        joiner.start();
+
+        if (!bulkheads.isEmpty()) {
+            new Thread(() -> {
+                String lastBulkheadStats = null;
+                try {
+                    while (true) {
+                        Thread.sleep(5000);
+                        String stats = bulkheadStats();
+                        if (!stats.equals(lastBulkheadStats)) {
+                            AsyncLogger.INFO.log("Bulkhead stats: {}", stats);
+                            lastBulkheadStats = stats;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stop reporting
+                }
+            }, "bulkhead-stats").start();
+        }
 
         // Çoklu istemci desteği
+        execution.startReporter(10);
         while (true) {
-            Socket clientSocket = serverSocket.accept();
-            new Thread(() -> handleClient(clientSocket)).start();
+            Socket clientSocket = serverSocket.accept().socket();
+            long accepted = System.nanoTime();
+            execution.execute(() -> handleClient(clientSocket, accepted));
         }
     }
     
-    private static void handleClient(Socket clientSocket) {
+    private static void handleClient(Socket clientSocket, long accepted) {
+        // What this request holds, so a failure part way gives back only that
+        Bulkhead admittedTo = null;
+        boolean loadAdded = false;
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            InputStream raw = new BufferedInputStream(clientSocket.getInputStream());
             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-            
-            String request = in.readLine();
+
+            // A binary client sends one REQUEST frame instead of a line, the response stays text
+            String request;
+            raw.mark(1);
+            if (raw.read() == (WireCodec.MAGIC & 0xFF)) {
+                request = readBinaryRequest(raw);
+            } else {
+                raw.reset();
+                request = new BufferedReader(new InputStreamReader(raw)).readLine();
+            }
             if (request != null) {
                 String[] parts = request.split(" ");
                 String requestType = parts[0];
+                if (requestType.equals("STATS")) {
+                    // Not a request: no load, no bulkhead, not reported to the LB
+                    out.write(request.endsWith("prometheus") ? Metrics.prometheus() : Metrics.text());
+                    out.write("END\n");
+                    out.flush();
+                    clientSocket.close();
+                    return;
+                }
+                String typeLabel = WireCodec.typeLabel(requestType);
                 
-                currentLoad.incrementAndGet();
-                System.out.println("Handling request: " + requestType + " (Load: " + currentLoad.get() + ")");
+                acceptedRequests.incrementAndGet();
+                Bulkhead bulkhead = bulkheads.get(requestType);
+                if (bulkhead != null) {
+                    if (!bulkhead.tryAcquire()) {
+                        refuse(clientSocket, out, bulkhead);
+                        return;
+                    }
+                    admittedTo = bulkhead;
+                }
+                queueLatency.get(typeLabel).record(System.nanoTime() - accepted);
+                AsyncLogger.REQUEST.log("Handling request: {} (Load: {})", requestType, addLoad(1));
+                loadAdded = true;
                 
+                long started = System.nanoTime();
+                int requestedSeconds = 0;
+                boolean streamed = false;
                 switch (requestType) {
                     case "DIRECTORY":
-                        handleDirectoryRequest(out);
+                        handleDirectoryRequest(clientSocket.getChannel());
                         break;
                     case "FILE_TRANSFER":
                         String filename = parts.length > 1 ? parts[1] : "default.txt";
-                        handleFileTransfer(out, filename);
+                        if (contentDir != null) {
+                            serveFile(out, clientSocket.getChannel(), parts);
+                        } else {
+                            handleFileTransfer(out, filename);
+                        }
                         break;
                     case "COMPUTATION":
                         int duration = parts.length > 1 ? Integer.parseInt(parts[1]) : 10;
-                        handleComputationRequest(out, duration);
+                        requestedSeconds = duration;
+                        if (computeKernel != null) {
+                            compute(clientSocket, raw, out, duration);
+                        } else if (streamWheels != null) {
+                            new StreamSession(clientSocket.getChannel(), requestType, duration).start();
+                            streamed = true;
+                        } else {
+                            handleComputationRequest(out, duration);
+                        }
                         break;
                     case "VIDEO_STREAMING":
                         int streamDuration = parts.length > 1 ? Integer.parseInt(parts[1]) : 30;
-                        handleVideoStreaming(out, streamDuration);
+                        requestedSeconds = streamDuration;
+                        if (streamWheels != null) {
+                            new StreamSession(clientSocket.getChannel(), requestType, streamDuration).start();
+                            streamed = true;
+                        } else {
+                            handleVideoStreaming(out, streamDuration);
+                        }
                         break;
                     default:
-                        handleDirectoryRequest(out); // Default to directory listing
+                        handleDirectoryRequest(clientSocket.getChannel()); // Default to directory listing
                 }
-                
-                currentLoad.decrementAndGet();
-                System.out.println("Completed request: " + requestType + " (Load: " + currentLoad.get() + ")");
+
+                // A streamed session owns the socket and its bulkhead slot now and finishes the request itself
+                if (streamed) {
+                    admittedTo = null;
+                    loadAdded = false;
+                    return;
+                }
+
+                if (admittedTo != null) admittedTo.release();
+                admittedTo = null;
+                long elapsed = System.nanoTime() - started;
+                serviceLatency.get(typeLabel).record(elapsed);
+                if (WireCodec.typeCode(requestType) >= 0) {
+                    serviceTimes.record(requestType, requestedSeconds, TimeUnit.NANOSECONDS.toMillis(elapsed));
+                }
+                AsyncLogger.REQUEST.log("Completed request: {} (Load: {})", requestType, addLoad(-1));
+                loadAdded = false;
             }
             
             clientSocket.close();
-        } catch (IOException | NumberFormatException e) {
-            System.err.println("Error handling client: " + e.getMessage());
-            currentLoad.decrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            AsyncLogger.WARN.log("Error handling client: {}", e.getMessage());
+            try { clientSocket.close(); } catch (IOException ex) {}
+        } finally {
+            if (admittedTo != null) admittedTo.release();
+            if (loadAdded) addLoad(-1);
+        }
+    }
+
+    // Join a load balancer and stay joined for the life of the process: when the connection
+    // ends (the LB restarted, died or dropped the server), join again, trying every listed LB in
+    // turn and backing off exponentially after each round in which none accepted
+    private static void stayJoined(int[] lbPorts, String join) {
+        long backoff = JOIN_BACKOFF_MIN_MILLIS;
+        int next = 0;
+        int failed = 0;
+        String lastError = null;
+        while (true) {
+            int lbPort = lbPorts[next];
+            next = (next + 1) % lbPorts.length;
+            boolean joined = false;
+            try (Socket lb = new Socket()) {
+                lb.connect(new InetSocketAddress("localhost", lbPort), 1000);
+                lb.setTcpNoDelay(true);
+                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(lb.getOutputStream()));
+                BufferedReader in = new BufferedReader(new InputStreamReader(lb.getInputStream()));
+                out.write(join);
+                out.flush();
+                String response = in.readLine();
+                if (!"join_accepted".equals(response)) {
+                    throw new IOException("rejected: " + response);
+                }
+                AsyncLogger.INFO.log("Successfully registered with load balancer on port {}", lbPort);
+                joined = true;
+                loadBalancer = lb;
+                loadBalancerOut = out;
+                busyReported.clear();
+                // A restarted LB knows nothing of this server's load until it hears it
+                loadReporter.reportNow();
+                backoff = JOIN_BACKOFF_MIN_MILLIS;
+                failed = 0;
+
+                // The LB sends nothing after join_accepted: this returns when the connection ends
+                while (in.readLine() != null) {
+                }
+            } catch (IOException e) {
+                if (!joined) {
+                    lastError = "port " + lbPort + ": " + e.getMessage();
+                    AsyncLogger.DEBUG.log("Failed to join load balancer on port {} ({})", lbPort, e.getMessage());
+                }
+            }
+            if (stopping) return;
+            if (joined) {
+                loadBalancerOut = null;
+                loadBalancer = null;
+                AsyncLogger.WARN.log("Lost load balancer on port {}, joining again", lbPort);
+                continue;
+            }
+            if (++failed % lbPorts.length == 0) {
+                long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                AsyncLogger.WARN.log("No load balancer accepted the join ({}), retrying in {}ms", lastError, delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(JOIN_BACKOFF_MAX_MILLIS, backoff * 2);
+            }
+        }
+    }
+
+    // Every load change goes through here so the reporter can push the ones that matter
+    private static int addLoad(int delta) {
+        int load = currentLoad.addAndGet(delta);
+        LoadReporter reporter = loadReporter;
+        if (reporter != null) reporter.changed(load);
+        return load;
+    }
+
+    // Answer BUSY without doing any of the work, and tell the LB the first time this type
+    // fills up since the last load report
+    private static void refuse(Socket clientSocket, BufferedWriter out, Bulkhead bulkhead) throws IOException {
+        refusedTotal.get(WireCodec.typeLabel(bulkhead.name())).increment();
+        AsyncLogger.INFO.log("Refused request: {} (bulkhead full, {})", bulkhead.name(), bulkhead.stats());
+        try {
+            out.write("BUSY " + bulkhead.name() + "\n");
+            out.flush();
+        } finally {
+            clientSocket.close();
+        }
+
+        BufferedWriter lbOut = loadBalancerOut;
+        if (lbOut != null && busyReported.add(bulkhead.name())) {
+            try {
+                lbOut.write("busy " + bulkhead.name() + "\n");
+                lbOut.flush();
+            } catch (IOException e) {
+                // The join thread notices a lost load balancer
+            }
+        }
+    }
+
+    // " busy=TYPE,TYPE" for the types that would refuse a request right now, empty when none do.
+    // Types that are not full anymore may be reported busy again on their next refusal.
+    private static String saturatedTypes() {
+        StringBuilder busy = new StringBuilder();
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            if (bulkhead.saturated()) {
+                busy.append(busy.length() == 0 ? " busy=" : ",").append(bulkhead.name());
+            } else {
+                busyReported.remove(bulkhead.name());
+            }
+        }
+        return busy.toString();
+    }
+
+    private static String bulkheadStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            if (stats.length() > 0) stats.append("; ");
+            stats.append(bulkhead.stats());
         }
+        return stats.toString();
     }
     
-    private static void handleDirectoryRequest(BufferedWriter out) throws IOException {
+    private static void startStreamWheels(int count) {
+        streamWheels = new TimingWheel[count];
+        for (int i = 0; i < count; i++) {
+            streamWheels[i] = new TimingWheel("stream-wheel-" + i, StreamSession.TICK_MILLIS, TimeUnit.MILLISECONDS, 512);
+        }
+
+        // Report stream activity on the first wheel while there is any
+        streamWheels[0].schedule(new Runnable() {
+            long lastSent = -1;
+
+            public void run() {
+                if (framesSent.get() != lastSent) {
+                    lastSent = framesSent.get();
+                    AsyncLogger.INFO.log("Stream stats: active={} frames={} dropped={}",
+                                         activeStreams.get(), lastSent, framesDropped.get());
+                }
+                streamWheels[0].schedule(this, 10, TimeUnit.SECONDS);
+            }
+        }, 10, TimeUnit.SECONDS);
+    }
+
+    // One VIDEO_STREAMING or COMPUTATION response paced by a timing wheel. Each frame is a single
+    // non-blocking write at its ideal time (start + n seconds, so pacing does not drift). If the
+    // client has not taken the previous frame yet, this one is dropped: a lost VIDEO_FRAME, or a
+    // progress line coalesced into the next one, instead of a thread blocked on a slow socket.
+    private static class StreamSession implements Runnable {
+        static final long TICK_MILLIS = 5;
+        private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1);
+        // How long the completion line may wait for a stalled client before the session is cut
+        private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+        private final SocketChannel channel;
+        private final String requestType;
+        private final int duration;
+        private final TimingWheel wheel;
+        private long startTime;
+        private int frame = 0;
+        private int dropped = 0;
+        private ByteBuffer pending = ByteBuffer.allocate(0);
+        private long drainDeadline = 0;
+        private boolean completed = false;
+
+        StreamSession(SocketChannel channel, String requestType, int duration) {
+            this.channel = channel;
+            this.requestType = requestType;
+            this.duration = duration;
+            this.wheel = streamWheels[(nextWheel.getAndIncrement() & Integer.MAX_VALUE) % streamWheels.length];
+        }
+
+        void start() throws IOException {
+            channel.configureBlocking(false);
+            activeStreams.incrementAndGet();
+            startTime = System.nanoTime();
+            try {
+                send(requestType + "_START duration=" + duration + "s\n");
+                if (duration <= 0) {
+                    finish();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            wheel.schedule(this, FRAME_NANOS, TimeUnit.NANOSECONDS);
+        }
+
+        // Runs on the wheel thread, never blocks
+        public void run() {
+            try {
+                if (drainDeadline != 0) {
+                    drain();
+                    return;
+                }
+
+                frame++;
+                if (!flushPending()) {
+                    dropped++;
+                    framesDropped.incrementAndGet();
+                } else if (requestType.equals("COMPUTATION")) {
+                    send("COMPUTATION_PROGRESS " + (frame * 100 / duration) + "%\n");
+                } else {
+                    send("VIDEO_FRAME " + frame + "/" + duration + " [Frame data]\n");
+                }
+
+                if (frame < duration) {
+                    long next = startTime + (frame + 1) * FRAME_NANOS;
+                    wheel.schedule(this, next - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } else {
+                    finish();
+                }
+            } catch (IOException e) {
+                AsyncLogger.INFO.log("Stream client went away: {}", e.getMessage());
+                close();
+            }
+        }
+
+        private void finish() throws IOException {
+            String complete;
+            if (requestType.equals("COMPUTATION")) {
+                // A coalesced final progress line still has to reach the client
+                complete = (dropped > 0 ? "COMPUTATION_PROGRESS 100%\n" : "") + "COMPUTATION_COMPLETE result=42\n";
+            } else {
+                complete = "VIDEO_STREAMING_COMPLETE" + (dropped > 0 ? " dropped=" + dropped : "") + "\n";
+            }
+            byte[] bytes = complete.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer rest = ByteBuffer.allocate(pending.remaining() + bytes.length);
+            rest.put(pending).put(bytes).flip();
+            pending = rest;
+            drainDeadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+            drain();
+        }
+
+        // Keep writing the tail until it is out, then close the session
+        private void drain() throws IOException {
+            if (flushPending()) {
+                completed = true;
+                close();
+            } else if (System.nanoTime() > drainDeadline) {
+                AsyncLogger.WARN.log("Stream client stalled, closing {} session", requestType);
+                close();
+            } else {
+                wheel.schedule(this, 50, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void send(String line) throws IOException {
+            pending = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+            flushPending();
+            framesSent.incrementAndGet();
+        }
+
+        // Returns true once nothing is left waiting for the client
+        private boolean flushPending() throws IOException {
+            if (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+            return !pending.hasRemaining();
+        }
+
+        private void close() {
+            Bulkhead bulkhead = bulkheads.get(requestType);
+            if (bulkhead != null) bulkhead.release();
+            if (completed) {
+                long elapsed = System.nanoTime() - startTime;
+                serviceLatency.get(requestType).record(elapsed);
+                serviceTimes.record(requestType, duration, TimeUnit.NANOSECONDS.toMillis(elapsed));
+            }
+            activeStreams.decrementAndGet();
+            AsyncLogger.REQUEST.log("Completed request: {} (Load: {})", requestType, addLoad(-1));
+            try { channel.close(); } catch (IOException e) {}
+        }
+    }
+
+    // Turn a binary REQUEST frame back into the equivalent request line
+    private static String readBinaryRequest(InputStream in) throws IOException {
+        WireCodec.Message message = new WireCodec.Message();
+        if (!WireCodec.readFrame(in, new byte[WireCodec.MAX_FRAME], message)) return null;
+        if (message.opcode != WireCodec.OP_REQUEST) throw new ProtocolException("Unexpected opcode " + message.opcode);
+
+        String requestType = WireCodec.REQUEST_TYPES[message.type];
+        if (message.nameLength > 0) {
+            return requestType + " " + new String(message.name, 0, message.nameLength, "UTF-8");
+        }
+        return message.number > 0 ? requestType + " " + message.number : requestType;
+    }
+
+    private static void handleDirectoryRequest(SocketChannel channel) throws IOException {
+        boolean[] built = {false};
+        ResponseCache.Loader build = () -> {
+            built[0] = true;
+            return encodeListing();
+        };
+        writeFully(channel, responseCache != null ? responseCache.get(LISTING_KEY, build) : build.load());
+        
+        // Simulate fast response (the work a cached listing saves)
+        if (built[0]) {
+            try { Thread.sleep(100); } catch (InterruptedException e) {}
+        }
+    }
+
+    private static ByteBuffer encodeListing() throws IOException {
         StringBuilder response = new StringBuilder("DIRECTORY_LISTING\n");
-        for (String file : fileList) {
+        for (String file : listFiles()) {
             response.append(file).append("\n");
         }
         response.append("END\n");
-        out.write(response.toString());
-        out.flush();
-        
-        // Simulate fast response
-        try { Thread.sleep(100); } catch (InterruptedException e) {}
+        byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encoded = ByteBuffer.allocateDirect(bytes.length);
+        encoded.put(bytes).flip();
+        return encoded;
+    }
+
+    private static String fileKey(String filename) {
+        return "FILE " + filename;
+    }
+
+    // Whole file in a direct buffer, for the response cache
+    private static ByteBuffer readFile(FileChannel source, long size) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+        while (content.hasRemaining()) {
+            if (source.read(content, content.position()) < 0) throw new EOFException("File shrank while caching");
+        }
+        content.flip();
+        return content;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
     }
     
+    private static List<String> listFiles() throws IOException {
+        if (contentDir == null) {
+            List<String> simulated = new ArrayList<>();
+            Collections.addAll(simulated, fileList);
+            return simulated;
+        }
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(contentDir)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) names.add(entry.getFileName().toString());
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    // FILE_TRANSFER <name> [offset=<n>] [length=<n>] from the content directory. The reply is
+    //   FILE_TRANSFER_START <name> size=<file size> offset=<o> length=<l>
+    // then exactly l raw bytes, then FILE_TRANSFER_COMPLETE, so a client can skip the body
+    // without scanning it and resume an interrupted download with offset=.
+    private static void serveFile(BufferedWriter out, SocketChannel channel, String[] parts) throws IOException {
+        String filename = parts.length > 1 ? parts[1] : "";
+        long offset = 0;
+        long length = -1;
+        for (int i = 2; i < parts.length; i++) {
+            if (parts[i].startsWith("offset=")) {
+                offset = Long.parseLong(parts[i].substring(7));
+            } else if (parts[i].startsWith("length=")) {
+                length = Long.parseLong(parts[i].substring(7));
+            }
+        }
+
+        // Only plain files directly under the content directory, no ../ escapes
+        Path file;
+        try {
+            file = contentDir.resolve(filename).normalize();
+        } catch (InvalidPathException e) {
+            file = null; // a name this filesystem cannot hold, e.g. with a NUL in it
+        }
+        if (filename.isEmpty() || file == null || !file.startsWith(contentDir) || !Files.isRegularFile(file)) {
+            out.write("FILE_NOT_FOUND " + filename + "\n");
+            out.flush();
+            return;
+        }
+
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = source.size();
+            offset = Math.min(Math.max(0, offset), size);
+            long count = length < 0 ? size - offset : Math.min(length, size - offset);
+
+            // Small files come from the response cache; a size change means the cached copy is stale
+            ByteBuffer cached = null;
+            if (responseCache != null && responseCache.admits(size)) {
+                cached = responseCache.get(fileKey(filename), () -> readFile(source, size));
+                if (cached.capacity() != size) {
+                    responseCache.invalidate(fileKey(filename));
+                    cached = responseCache.get(fileKey(filename), () -> readFile(source, size));
+                }
+                cached.position((int) offset).limit((int) (offset + count));
+            }
+
+            out.write("FILE_TRANSFER_START " + filename + " size=" + size + " offset=" + offset + " length=" + count + "\n");
+            out.flush();
+            if (cached != null) {
+                writeFully(channel, cached);
+            } else {
+                sendFile(source, offset, count, channel, fileIo);
+            }
+            out.write("FILE_TRANSFER_COMPLETE\n");
+            out.flush();
+        }
+    }
+
+    // Write count bytes of source from offset to a blocking socket channel, see fileIo
+    static void sendFile(FileChannel source, long offset, long count, SocketChannel target, String mode) throws IOException {
+        if (mode.equals("stream")) {
+            // Baseline: every byte is copied through user space twice
+            InputStream in = new BufferedInputStream(Channels.newInputStream(source.position(offset)));
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(target));
+            byte[] buffer = new byte[8192];
+            long remaining = count;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) throw new EOFException("File shrank during transfer");
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+            out.flush();
+        } else if (mode.equals("mmap") || (mode.equals("auto") && count >= MAP_THRESHOLD)) {
+            // Map the file a region at a time, the socket write reads straight from the page cache
+            for (long position = offset; position < offset + count; position += MAP_REGION) {
+                long regionSize = Math.min(MAP_REGION, offset + count - position);
+                MappedByteBuffer region = source.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+                while (region.hasRemaining()) {
+                    target.write(region);
+                }
+            }
+        } else {
+            // sendfile: the kernel moves the bytes from the page cache to the socket
+            long position = offset;
+            long end = offset + count;
+            while (position < end) {
+                long sent = source.transferTo(position, end - position, target);
+                if (sent <= 0 && position >= source.size()) throw new EOFException("File shrank during transfer");
+                position += sent;
+            }
+        }
+    }
+
     private static void handleFileTransfer(BufferedWriter out, String filename) throws IOException {
         out.write("FILE_TRANSFER_START " + filename + "\n");
         out.flush();
@@ -164,6 +822,62 @@ public class Server {
         }
     }
     
+    // COMPUTATION on the compute kernel. The session thread only waits: it reports progress
+    // from finished chunks at most once per PROGRESS_MILLIS and cancels the job as soon as the
+    // client has closed its connection or stops taking the progress lines.
+    private static void compute(Socket clientSocket, InputStream in, BufferedWriter out, int units) throws IOException {
+        out.write("COMPUTATION_START duration=" + units + "s\n");
+        out.flush();
+        ComputeKernel.Job job = computeKernel.submit(units);
+        int reported = 0;
+        long nextProgress = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROGRESS_MILLIS);
+        try {
+            clientSocket.setSoTimeout(1);
+            // End of input is only a half-close, the client may still be reading: the job is
+            // cancelled when the connection is reset or a progress write fails
+            boolean inputEnded = false;
+            while (!job.await(CANCEL_CHECK_MILLIS)) {
+                if (!inputEnded) inputEnded = inputEnded(in);
+                int percent = job.percent();
+                if (percent > reported && System.nanoTime() - nextProgress >= 0) {
+                    out.write("COMPUTATION_PROGRESS " + percent + "%\n");
+                    out.flush();
+                    reported = percent;
+                    nextProgress = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROGRESS_MILLIS);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            job.cancel();
+            AsyncLogger.INFO.log("Cancelled COMPUTATION at {}% ({})", job.percent(), e.getMessage());
+            clientSocket.close();
+            throw new IOException("computation cancelled: " + e.getMessage());
+        }
+        out.write("COMPUTATION_PROGRESS 100%\n");
+        out.write("COMPUTATION_COMPLETE result=" + job.result() + "\n");
+        out.flush();
+    }
+
+    // Whether the client shut down its sending side; reads with the socket's 1ms timeout, so a
+    // reset connection throws. Clients send nothing after the request line, anything they do
+    // send is ignored.
+    private static boolean inputEnded(InputStream in) throws IOException {
+        try {
+            return in.read() < 0;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    // " cpu=<percent>" of the machine's CPU in use since the previous report, empty where the
+    // JVM cannot tell. Several servers on one machine report the same saturation.
+    private static String cpuUsage() {
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) osBean).getCpuLoad();
+            if (load >= 0) return " cpu=" + Math.round(load * 100);
+        }
+        return "";
+    }
+
     private static void handleComputationRequest(BufferedWriter out, int duration) throws IOException {
         out.write("COMPUTATION_START duration=" + duration + "s\n");
         out.flush();
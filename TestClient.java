@@ -1,6 +1,9 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestClient {
     private static final String[] REQUEST_TYPES = {
@@ -9,60 +12,238 @@ public class TestClient {
         "COMPUTATION 5",
         "VIDEO_STREAMING 10"
     };
+
+    // Completed request latencies (ms) per request type, for percentile reporting
+    private static final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    // Requests assigned per server port
+    private static final Map<Integer, AtomicInteger> assignments = new ConcurrentSkipListMap<>();
+    // Shared keep-alive lookup connections for the "pooled" mode
+    private static LookupClient lookupClient;
+    // Client-side routing from a load balancer lease for the "lease" mode
+    private static LeaseCache leaseCache;
+    // A server that answers BUSY, cannot be connected to or does not start its reply in time
+    // is not used for this request, ask the load balancer again (failures are reported to it)
+    private static final int MAX_RETRIES = 3;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int FIRST_REPLY_TIMEOUT_MILLIS = 2000;
+    private static final AtomicInteger failedServers = new AtomicInteger(0);
+    private static final AtomicInteger busyReplies = new AtomicInteger(0);
+    // Requests still refused after every retry, per request type
+    private static final Map<String, AtomicInteger> refused = new ConcurrentSkipListMap<>();
+    // Load balancers to spread lookups over (-lb 9001,9002,9003 for peered LBs)
+    private static int[] lbPorts = {9001};
     
     public static void main(String[] args) throws IOException, InterruptedException {
         int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
         int numRequests = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        // Mode: "full" (lookup, then talk to the server), "pooled" (lookups over a few persistent
+        // LB connections), "binary" (pooled, with binary WireCodec lookups), "lease" (pick servers locally from a leased snapshot, start the LB with
+        // -lease <ms>), "proxy" (the LB relays the response) or "burst" (every thread fires
+        // COMPUTATION lookups at once and only the assignment is checked)
+        String mode = args.length > 2 ? args[2] : "full";
+        // Per-request progress lines: -log <level> and -logSample <n> after the positional
+        // arguments, as is -lb <ports>
+        String logLevel = "request";
+        int logSample = 1;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("-log") && i + 1 < args.length) {
+                logLevel = args[i + 1];
+            } else if (args[i].equals("-logSample") && i + 1 < args.length) {
+                logSample = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-lb") && i + 1 < args.length) {
+                lbPorts = LookupClient.parsePorts(args[i + 1]);
+            }
+        }
+        AsyncLogger.configure(logLevel, logSample);
+        boolean burst = mode.equals("burst");
+        if (mode.equals("pooled") || mode.equals("binary") || mode.equals("lease")) {
+            lookupClient = new LookupClient("localhost", lbPorts, Math.max(lbPorts.length, numThreads / 4), mode.equals("binary"));
+        }
+        if (mode.equals("lease")) {
+            leaseCache = new LeaseCache(lookupClient);
+            if (!leaseCache.start()) {
+                System.out.println("Load balancer hands out no leases, falling back to lookups");
+            }
+        }
         
         System.out.println("=== Multi-threaded Load Balancer Test ===");
-        System.out.println("Threads: " + numThreads + ", Total requests: " + numRequests);
+        System.out.println("Threads: " + numThreads + ", Total requests: " + numRequests + " (" + mode + ")");
         System.out.println("Starting concurrent requests...\n");
         
         ExecutorService executor = Executors.newFixedThreadPool(numThreads);
         CountDownLatch latch = new CountDownLatch(numRequests);
-        
-        long startTime = System.currentTimeMillis();
+        CountDownLatch startGate = new CountDownLatch(1);
         
         // Submit multiple requests concurrently
         for (int i = 0; i < numRequests; i++) {
             final int requestId = i + 1;
-            final String request = REQUEST_TYPES[i % REQUEST_TYPES.length];
+            final String request = burst ? "COMPUTATION 5" : REQUEST_TYPES[i % REQUEST_TYPES.length];
             
             executor.submit(() -> {
                 try {
-                    performRequest(requestId, request);
+                    startGate.await();
+                    performRequest(requestId, request, mode);
                 } catch (Exception e) {
-                    System.err.println("Thread " + requestId + " error: " + e.getMessage());
+                    AsyncLogger.ERROR.log("Thread {} error: {}", requestId, e.getMessage());
                 } finally {
                     latch.countDown();
                 }
             });
         }
         
+        long startTime = System.currentTimeMillis();
+        startGate.countDown();
+
         // Wait for all requests to complete
         latch.await();
         long endTime = System.currentTimeMillis();
         
         executor.shutdown();
+        AsyncLogger.flush();
         
         System.out.println("\n=== Test Results ===");
         System.out.println("All " + numRequests + " requests completed in " + 
                          (endTime - startTime) + "ms");
         System.out.println("Average time per request: " + 
                          (endTime - startTime) / numRequests + "ms");
+        printPercentiles();
+        printAssignments();
+        System.out.println("\nLogger: " + AsyncLogger.stats());
+        if (busyReplies.get() > 0 || failedServers.get() > 0) {
+            System.out.println("\nBUSY replies: " + busyReplies.get() + ", failed servers: " + failedServers.get() +
+                               ", refused after " + MAX_RETRIES + " retries: " + refused);
+        }
+        if (leaseCache != null) {
+            leaseCache.close();
+        }
+        if (lookupClient != null) {
+            System.out.println();
+            lookupClient.printStats();
+            lookupClient.close();
+        }
+    }
+
+    private static void printAssignments() {
+        System.out.println("\n=== Assignments Per Server ===");
+        for (Map.Entry<Integer, AtomicInteger> entry : assignments.entrySet()) {
+            System.out.println("Port " + entry.getKey() + ": " + entry.getValue().get() + " requests");
+        }
+    }
+
+    private static void printPercentiles() {
+        List<Long> all = new ArrayList<>();
+        System.out.println("\n=== Latency Percentiles ===");
+        for (String type : new TreeSet<>(latencies.keySet())) {
+            List<Long> samples = latencies.get(type);
+            synchronized (samples) {
+                all.addAll(samples);
+                printPercentiles(type, new ArrayList<>(samples));
+            }
+        }
+        printPercentiles("ALL", all);
+    }
+
+    private static void printPercentiles(String label, List<Long> samples) {
+        if (samples.isEmpty()) return;
+        Collections.sort(samples);
+        System.out.println(String.format("%-16s n=%-5d p50=%dms p90=%dms p99=%dms max=%dms", label, samples.size(),
+            percentile(samples, 0.50), percentile(samples, 0.90), percentile(samples, 0.99),
+            samples.get(samples.size() - 1)));
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
     }
     
-    private static void performRequest(int requestId, String fullRequest) throws IOException {
+    private static void performRequest(int requestId, String fullRequest, String mode) throws IOException {
         long requestStart = System.currentTimeMillis();
         
-        synchronized (System.out) {
-            System.out.println("[Thread " + requestId + "] Starting: " + fullRequest);
+        AsyncLogger.REQUEST.log("[Thread {}] Starting: {}", requestId, fullRequest);
+
+        for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+            if (attempt > 0) {
+                try { Thread.sleep(50L * attempt); } catch (InterruptedException e) { return; }
+            }
+            if (attemptRequest(requestId, fullRequest, mode, requestStart)) return;
+        }
+        refused.computeIfAbsent(fullRequest.split(" ")[0], k -> new AtomicInteger()).incrementAndGet();
+        AsyncLogger.WARN.log("[Thread {}] Refused: no server took the request", requestId);
+    }
+
+    // One lookup and server exchange, false when the server refused or failed the request
+    private static boolean attemptRequest(int requestId, String fullRequest, String mode,
+                                          long requestStart) throws IOException {
+        String response;
+        int leasedPort = leaseCache != null ? leaseCache.pickPort() : -1;
+        if (leasedPort > 0) {
+            response = "SERVER_PORT " + leasedPort;
+        } else if (lookupClient != null) {
+            response = lookupClient.lookup(fullRequest);
+        } else {
+            response = lookupOverNewConnection(fullRequest, requestId, requestStart, mode);
+            if (response == null) return true;
+            if (response.equals("BUSY")) return false;
         }
         
+        if (response.startsWith("SERVER_PORT")) {
+            int port = Integer.parseInt(response.split(" ")[1]);
+            
+            assignments.computeIfAbsent(port, k -> new AtomicInteger()).incrementAndGet();
+            AsyncLogger.REQUEST.log("[Thread {}] Assigned to server port: {}", requestId, port);
+            if (mode.equals("burst")) return true;
+            
+            // Connect directly to assigned server
+            Socket serverSocket = new Socket();
+            try {
+                serverSocket.connect(new InetSocketAddress("localhost", port), CONNECT_TIMEOUT_MILLIS);
+                serverSocket.setSoTimeout(FIRST_REPLY_TIMEOUT_MILLIS);
+                BufferedReader serverIn = new BufferedReader(new InputStreamReader(serverSocket.getInputStream(), StandardCharsets.ISO_8859_1));
+                BufferedWriter serverOut = new BufferedWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
+
+                // Send request to server
+                serverOut.write(fullRequest + "\n");
+                serverOut.flush();
+
+                return readResponse(requestId, requestStart, fullRequest, serverIn, serverSocket);
+            } catch (SocketTimeoutException e) {
+                serverFailed(requestId, port, "slow");
+                return false;
+            } catch (ConnectException e) {
+                serverFailed(requestId, port, "connect");
+                return false;
+            } finally {
+                serverSocket.close();
+            }
+        } else {
+            AsyncLogger.WARN.log("[Thread {}] No server available: {}", requestId, response);
+            return true;
+        }
+    }
+
+    private static void serverFailed(int requestId, int port, String reason) {
+        failedServers.incrementAndGet();
+        AsyncLogger.WARN.log("[Thread {}] Server on port {} failed ({})", requestId, port, reason);
+        Client.reportFailure(lbPorts[0], port, reason);
+    }
+
+    // One connection per lookup, as Client does. In proxy mode the response is read here
+    // too and null is returned, or BUSY once the load balancer's own retries were refused.
+    private static String lookupOverNewConnection(String fullRequest, int requestId, long requestStart,
+                                                  String mode) throws IOException {
         // Connect to load balancer
-        Socket lbSocket = new Socket("localhost", 9001);
+        Socket lbSocket = new Socket("localhost", lbPorts[requestId % lbPorts.length]);
         BufferedWriter lbOut = new BufferedWriter(new OutputStreamWriter(lbSocket.getOutputStream()));
-        BufferedReader lbIn = new BufferedReader(new InputStreamReader(lbSocket.getInputStream()));
+        BufferedReader lbIn = new BufferedReader(new InputStreamReader(lbSocket.getInputStream(), StandardCharsets.ISO_8859_1));
+
+        if (mode.equals("proxy")) {
+            // The load balancer relays the server's response on this same connection
+            lbOut.write("PROXY " + fullRequest + "\n");
+            lbOut.flush();
+            boolean served = readResponse(requestId, requestStart, fullRequest, lbIn, null);
+            lbSocket.close();
+            return served ? null : "BUSY";
+        }
 
         // Send request to load balancer
         lbOut.write("REQUEST " + fullRequest + "\n");
@@ -70,56 +251,57 @@ public class TestClient {
 
         String response = lbIn.readLine();
         lbSocket.close();
+        return response != null ? response : "NO_RESPONSE";
+    }
+
+    // Returns false, recording nothing, when the server refused the request with BUSY. The
+    // socket's first-reply timeout, if any, is lifted once the first line is in.
+    private static boolean readResponse(int requestId, long requestStart, String fullRequest,
+                                        BufferedReader serverIn, Socket timed) throws IOException {
+        // Read server response
+        StringBuilder responseBuilder = new StringBuilder();
+        String line;
+        int lineCount = 0;
         
-        if (response != null && response.startsWith("SERVER_PORT")) {
-            int port = Integer.parseInt(response.split(" ")[1]);
-            
-            synchronized (System.out) {
-                System.out.println("[Thread " + requestId + "] Assigned to server port: " + port);
+        while ((line = serverIn.readLine()) != null && lineCount < 10) {
+            if (lineCount == 0 && line.equals("NO_SERVER_AVAILABLE")) {
+                AsyncLogger.WARN.log("[Thread {}] No server available: {}", requestId, line);
+                return true;
             }
-            
-            // Connect directly to assigned server
-            Socket serverSocket = new Socket("localhost", port);
-            BufferedReader serverIn = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-            BufferedWriter serverOut = new BufferedWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
-            
-            // Send request to server
-            serverOut.write(fullRequest + "\n");
-            serverOut.flush();
-            
-            // Read server response
-            StringBuilder responseBuilder = new StringBuilder();
-            String line;
-            int lineCount = 0;
-            
-            while ((line = serverIn.readLine()) != null && lineCount < 10) {
-                responseBuilder.append(line).append("\n");
-                lineCount++;
-                
-                if (line.contains("END") || line.contains("COMPLETE")) {
-                    break;
-                }
+            if (lineCount == 0 && timed != null) {
+                timed.setSoTimeout(0);
             }
-            
-            serverSocket.close();
-            
-            long requestEnd = System.currentTimeMillis();
-            
-            synchronized (System.out) {
-                System.out.println("[Thread " + requestId + "] Completed in " + 
-                                 (requestEnd - requestStart) + "ms");
-                System.out.println("[Thread " + requestId + "] Response preview:");
-                String[] lines = responseBuilder.toString().split("\n");
-                for (int i = 0; i < Math.min(3, lines.length); i++) {
-                    System.out.println("    " + lines[i]);
-                }
-                System.out.println();
+            if (lineCount == 0 && line.startsWith("BUSY")) {
+                busyReplies.incrementAndGet();
+                AsyncLogger.INFO.log("[Thread {}] Server busy: {}", requestId, line);
+                return false;
+            }
+            responseBuilder.append(line).append("\n");
+            lineCount++;
+            long skipped = Client.skipFileBody(serverIn, line);
+            if (skipped > 0) {
+                responseBuilder.append("[").append(skipped).append(" bytes of file content]\n");
             }
             
-        } else {
-            synchronized (System.out) {
-                System.out.println("[Thread " + requestId + "] No server available: " + response);
+            if (line.contains("END") || line.contains("COMPLETE")) {
+                break;
+            }
+        }
+        
+        long requestEnd = System.currentTimeMillis();
+        String requestType = fullRequest.split(" ")[0];
+        List<Long> samples = latencies.computeIfAbsent(requestType, k -> Collections.synchronizedList(new ArrayList<>()));
+        samples.add(requestEnd - requestStart);
+        
+        if (AsyncLogger.REQUEST.enabled()) {
+            // One message, so the preview stays together with its request
+            StringBuilder preview = new StringBuilder("\n[Thread ").append(requestId).append("] Response preview:");
+            String[] lines = responseBuilder.toString().split("\n");
+            for (int i = 0; i < Math.min(3, lines.length); i++) {
+                preview.append("\n    ").append(lines[i]);
             }
+            AsyncLogger.REQUEST.log("[Thread {}] Completed in {}ms{}\n", requestId, requestEnd - requestStart, preview);
         }
+        return true;
     }
 }
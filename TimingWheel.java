@@ -0,0 +1,134 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hashed timing wheel: one thread advances a ring of buckets every tick and runs the timeouts
+// that fell due, so thousands of periodic timers cost one sleeping thread instead of one each.
+// Timeouts fire up to one tick late and run on the wheel thread, so tasks must not block.
+// Scheduling from any thread is lock-free; only the wheel thread touches the buckets.
+public class TimingWheel {
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final long startTime;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick = 0;
+
+    public static class Timeout {
+        final Runnable task;
+        final long deadline;
+        long rounds;
+        Timeout next;
+        volatile boolean cancelled = false;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    public TimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+        pending.incrementAndGet();
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    // Timeouts scheduled and not yet fired or cancelled
+    public int pending() {
+        return pending.get();
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            // Sleep until the end of the current tick
+            long tickEnd = startTime + (tick + 1) * tickNanos;
+            long sleepNanos = tickEnd - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+                continue;
+            }
+
+            transferIncoming();
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    // Place new timeouts in the bucket of their deadline's tick; ones already overdue go
+    // into the current bucket and fire on this tick
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.cancelled) {
+                pending.decrementAndGet();
+                continue;
+            }
+            // Tick k is processed once its end, startTime + (k + 1) * tickNanos, has passed
+            long due = Math.max(tick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (due - tick) / buckets.length;
+            int index = (int) (due & mask);
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+        }
+    }
+
+    private void expire(int index) {
+        Timeout previous = null;
+        Timeout timeout = buckets[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean remove = timeout.cancelled;
+            if (!remove && timeout.rounds <= 0) {
+                remove = true;
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    AsyncLogger.ERROR.log("Timer task failed: {}", e);
+                }
+            } else if (!remove) {
+                timeout.rounds--;
+            }
+
+            if (remove) {
+                pending.decrementAndGet();
+                if (previous == null) {
+                    buckets[index] = next;
+                } else {
+                    previous.next = next;
+                }
+            } else {
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+}
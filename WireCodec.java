@@ -0,0 +1,197 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// Compact binary framing for routing lookups, kept next to the text protocol.
+// A client opts in by sending MAGIC as the very first byte of a connection (text commands
+// always start with a letter or '@'); the load balancer answers with MAGIC and both sides
+// then exchange frames. A Server accepts a single REQUEST frame after MAGIC the same way and
+// answers with its usual text response.
+//
+//   [varint length][opcode][varint tag][payload]      length counts opcode..payload
+//
+//   OP_REQUEST      payload: [type][varint number][varint nameLength][name bytes]
+//   OP_SERVER_PORT  payload: [varint port]
+//   OP_NO_SERVER    no payload
+//
+// Decoding fills a reusable Message and encoding writes straight into the caller's buffer,
+// so neither side allocates per message.
+public class WireCodec {
+    public static final byte MAGIC = (byte) 0xB1;
+
+    public static final byte OP_REQUEST = 1;
+    public static final byte OP_SERVER_PORT = 2;
+    public static final byte OP_NO_SERVER = 3;
+
+    public static final int MAX_FRAME = 512;
+    public static final int MAX_NAME = 255;
+
+    // Request type codes on the wire, index = code
+    public static final String[] REQUEST_TYPES = {"DIRECTORY", "FILE_TRANSFER", "COMPUTATION", "VIDEO_STREAMING"};
+
+    public static int typeCode(String requestType) {
+        for (int i = 0; i < REQUEST_TYPES.length; i++) {
+            if (REQUEST_TYPES[i].equals(requestType)) return i;
+        }
+        return -1;
+    }
+
+    // The type itself when it is one of REQUEST_TYPES, otherwise OTHER, so metric labels taken
+    // from client input stay a small fixed set
+    public static String typeLabel(String requestType) {
+        return typeCode(requestType) >= 0 ? requestType : "OTHER";
+    }
+
+    // One decoded frame, meant to be reused for every message on a connection
+    public static class Message {
+        public byte opcode;
+        public int tag;
+        public int type;
+        public int number;
+        public int port;
+        public final byte[] name = new byte[MAX_NAME];
+        public int nameLength;
+    }
+
+    // Decodes one complete frame from in. Returns false, leaving the position untouched,
+    // when the frame has not fully arrived yet.
+    public static boolean decode(ByteBuffer in, Message out) throws ProtocolException {
+        int start = in.position();
+        int length = readVarint(in);
+        if (length < 0) {
+            if (in.position() - start > 4) throw new ProtocolException("Frame length too long");
+            in.position(start);
+            return false;
+        }
+        if (length == 0 || length > MAX_FRAME) throw new ProtocolException("Bad frame length " + length);
+        if (in.remaining() < length) {
+            in.position(start);
+            return false;
+        }
+        decodeBody(in, length, out);
+        return true;
+    }
+
+    // Blocking variant for stream sockets, body is scratch space of at least MAX_FRAME bytes.
+    // Returns false at end of stream.
+    public static boolean readFrame(InputStream in, byte[] body, Message out) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) return false;
+                throw new EOFException("Truncated frame length");
+            }
+            if (shift > 28) throw new ProtocolException("Frame length too long");
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        if (length <= 0 || length > MAX_FRAME) throw new ProtocolException("Bad frame length " + length);
+
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) throw new EOFException("Truncated frame");
+            read += n;
+        }
+        decodeBody(ByteBuffer.wrap(body, 0, length), length, out);
+        return true;
+    }
+
+    // Fields are read with the limit at the frame's end, so a field running past the frame
+    // is a ProtocolException rather than a read into the next frame or an underflow
+    private static void decodeBody(ByteBuffer in, int length, Message out) throws ProtocolException {
+        if (length <= 0 || length > MAX_FRAME) throw new ProtocolException("Bad frame length " + length);
+        int limit = in.limit();
+        int end = in.position() + length;
+        in.limit(end);
+        try {
+            out.opcode = in.get();
+            out.tag = readField(in);
+            switch (out.opcode) {
+                case OP_REQUEST:
+                    out.type = in.get();
+                    out.number = readField(in);
+                    out.nameLength = readField(in);
+                    if (out.type < 0 || out.type >= REQUEST_TYPES.length) throw new ProtocolException("Unknown request type " + out.type);
+                    if (out.nameLength < 0 || out.nameLength > MAX_NAME) throw new ProtocolException("Bad name length");
+                    if (out.nameLength > in.remaining()) throw new ProtocolException("Name longer than frame");
+                    in.get(out.name, 0, out.nameLength);
+                    break;
+                case OP_SERVER_PORT:
+                    out.port = readField(in);
+                    break;
+                case OP_NO_SERVER:
+                    break;
+                default:
+                    throw new ProtocolException("Unknown opcode " + out.opcode);
+            }
+            if (in.position() != end) throw new ProtocolException("Frame length mismatch");
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated frame");
+        } finally {
+            in.limit(limit);
+        }
+    }
+
+    // A varint inside a frame; -1 is readVarint running out of frame
+    private static int readField(ByteBuffer in) throws ProtocolException {
+        int value = readVarint(in);
+        if (value == -1) throw new ProtocolException("Truncated frame");
+        return value;
+    }
+
+    public static void encodeRequest(ByteBuffer out, int tag, int type, int number, byte[] name, int nameLength) {
+        int length = 1 + varintSize(tag) + 1 + varintSize(number) + varintSize(nameLength) + nameLength;
+        writeVarint(out, length);
+        out.put(OP_REQUEST);
+        writeVarint(out, tag);
+        out.put((byte) type);
+        writeVarint(out, number);
+        writeVarint(out, nameLength);
+        out.put(name, 0, nameLength);
+    }
+
+    public static void encodeServerPort(ByteBuffer out, int tag, int port) {
+        writeVarint(out, 1 + varintSize(tag) + varintSize(port));
+        out.put(OP_SERVER_PORT);
+        writeVarint(out, tag);
+        writeVarint(out, port);
+    }
+
+    public static void encodeNoServer(ByteBuffer out, int tag) {
+        writeVarint(out, 1 + varintSize(tag));
+        out.put(OP_NO_SERVER);
+        writeVarint(out, tag);
+    }
+
+    // Unsigned LEB128; returns -1 if the buffer ends before the varint does
+    static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            if (!in.hasRemaining()) return -1;
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        return -1;
+    }
+
+    static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Load report ingestion: LoadBalancer.handleServerUpdate for reports spread over 1 to 1000
+// backends, as a bare load, with the accepted-request sequence, and with CPU use, busy types and
+// learned costs the way servers send them after a burst.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeartbeatBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int backends;
+
+    @Param({"load", "seq", "full"})
+    public String report;
+
+    private Object[] pool;
+    private String[] reports;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Hooks.configure("least-load-indexed");
+        pool = Hooks.register(backends, 20000);
+        SplittableRandom random = new SplittableRandom(42);
+        reports = new String[256];
+        for (int i = 0; i < reports.length; i++) {
+            int load = random.nextInt(50);
+            switch (report) {
+                case "load":
+                    reports[i] = "load=" + load;
+                    break;
+                case "seq":
+                    reports[i] = "load=" + load + " seq=" + (1000 + i);
+                    break;
+                default:
+                    reports[i] = "load=" + load + " seq=" + (1000 + i) + " cpu=" + (load * 2) + " busy=VIDEO_STREAMING" +
+                                 " cost=COMPUTATION/8:3:1012,DIRECTORY/0:41:2";
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public boolean ingest(Cursor cursor) throws Throwable {
+        int i = cursor.next++;
+        Object backend = pool[(i & Integer.MAX_VALUE) % pool.length];
+        return (boolean) Hooks.HANDLE_SERVER_UPDATE.invokeExact(backend, reports[i & (reports.length - 1)]);
+    }
+}
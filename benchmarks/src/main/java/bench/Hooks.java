@@ -0,0 +1,119 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.Socket;
+
+// The load balancer and server live in the default package, which named packages cannot import
+// from and JMH does not accept benchmarks in, so the benchmarks reach them through method
+// handles. A static final handle is a constant to the JIT and invokeExact compiles down to the
+// direct call. Default package types (Backend, WireCodec.Message) are erased to Object.
+final class Hooks {
+    // (Socket, String joinLine) -> Backend
+    static final MethodHandle REGISTER_SERVER = method("LoadBalancer", "registerServer", 2);
+    // (Backend, int load) -> void
+    static final MethodHandle UPDATE_LOAD = method("LoadBalancer", "updateLoad", 2);
+    // (String requestType, long estimatedMillis, long key) -> Backend
+    static final MethodHandle SELECT_SERVER = method("LoadBalancer", "selectServer", 3);
+    // (Backend, String report) -> boolean
+    static final MethodHandle HANDLE_SERVER_UPDATE = method("LoadBalancer", "handleServerUpdate", 2);
+    // (String requestType, String parameters) -> int seconds
+    static final MethodHandle ESTIMATE_REQUEST_TIME = method("LoadBalancer", "estimateRequestTime", 2);
+    // (byte[] line) -> int, the text lookup path as the codec benchmark measures it
+    static final MethodHandle TEXT_LOOKUP = method("Benchmark", "textLookup", 1);
+    // (ByteBuffer, Message) -> boolean
+    static final MethodHandle DECODE = method("WireCodec", "decode", 2);
+    // (ByteBuffer, int tag, int port) -> void
+    static final MethodHandle ENCODE_SERVER_PORT = method("WireCodec", "encodeServerPort", 3);
+    // (ByteBuffer, int tag, int type, int number, byte[] name, int nameLength) -> void
+    static final MethodHandle ENCODE_REQUEST = method("WireCodec", "encodeRequest", 6);
+    // (InputStream) -> String, the server's binary request frame back to a request line
+    static final MethodHandle READ_BINARY_REQUEST = method("Server", "readBinaryRequest", 1);
+    // (String) -> long
+    static final MethodHandle HASH = method("ConsistentHashRing", "hash", String.class);
+
+    private Hooks() {
+    }
+
+    // Routing setup shared by the benchmarks: no console logging, no liveness removals while
+    // backends stay silent, the given strategy for heavy and light requests
+    static void configure(String strategy) {
+        try {
+            Class.forName("AsyncLogger").getMethod("configure", String.class, int.class).invoke(null, "off", 1);
+            setStatic("LoadBalancer", "livenessMillis", 3_600_000L);
+            Method setStrategies = Class.forName("LoadBalancer").getDeclaredMethod("setStrategies", String.class, String.class);
+            setStrategies.setAccessible(true);
+            setStrategies.invoke(null, strategy, strategy);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Registered backends are never removed: every parameter combination runs in its own fork,
+    // and a trial-level teardown would show up in the last iteration's allocation figures (each
+    // removal rebuilds the hash ring)
+    static Object[] register(int count, int firstPort) throws Throwable {
+        Object[] pool = new Object[count];
+        for (int i = 0; i < count; i++) {
+            pool[i] = (Object) REGISTER_SERVER.invokeExact(new Socket(), "join -v dynamic port=" + (firstPort + i));
+        }
+        return pool;
+    }
+
+    static Object newMessage() {
+        try {
+            return Class.forName("WireCodec$Message").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method(String className, String name, int arity) {
+        try {
+            Class<?> owner = Class.forName(className);
+            for (Method candidate : owner.getDeclaredMethods()) {
+                if (candidate.getName().equals(name) && candidate.getParameterCount() == arity) {
+                    return unreflect(owner, candidate);
+                }
+            }
+            throw new NoSuchMethodException(className + "." + name + "/" + arity);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle method(String className, String name, Class<?>... parameters) {
+        try {
+            Class<?> owner = Class.forName(className);
+            return unreflect(owner, owner.getDeclaredMethod(name, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle unreflect(Class<?> owner, Method method) throws IllegalAccessException {
+        MethodHandle handle = MethodHandles.privateLookupIn(owner, MethodHandles.lookup()).unreflect(method);
+        return handle.asType(erase(handle.type()));
+    }
+
+    private static MethodType erase(MethodType type) {
+        MethodType erased = type.changeReturnType(erase(type.returnType()));
+        for (int i = 0; i < type.parameterCount(); i++) {
+            erased = erased.changeParameterType(i, erase(type.parameterType(i)));
+        }
+        return erased;
+    }
+
+    private static Class<?> erase(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getPackageName().isEmpty() ? Object.class : type;
+    }
+
+    private static void setStatic(String className, String name, Object value) throws ReflectiveOperationException {
+        Field field = Class.forName(className).getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+}
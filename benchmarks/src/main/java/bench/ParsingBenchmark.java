@@ -0,0 +1,80 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Request parsing: a text lookup line on the LB (split, duration estimate, reply), the same
+// lookup as a binary frame, the duration scan alone, and a binary request frame turned back
+// into a request line on the server.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+    private final byte[] textLine = "@17 REQUEST COMPUTATION 5s".getBytes(StandardCharsets.US_ASCII);
+    private ByteBuffer frames;
+    private ByteBuffer replies;
+    private Object message;
+    private ByteArrayInputStream serverFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Hooks.configure("round-robin");
+        frames = ByteBuffer.allocate(64 * 1024);
+        int tag = 0;
+        while (frames.remaining() >= 512) {
+            Hooks.ENCODE_REQUEST.invokeExact(frames, tag++, 2, 5, new byte[0], 0);
+        }
+        frames.flip();
+        replies = ByteBuffer.allocate(tag * 16);
+        message = Hooks.newMessage();
+
+        ByteBuffer frame = ByteBuffer.allocate(512);
+        byte[] name = "report.pdf".getBytes(StandardCharsets.US_ASCII);
+        Hooks.ENCODE_REQUEST.invokeExact(frame, 1, 1, 0, name, name.length);
+        serverFrame = new ByteArrayInputStream(frame.array(), 0, frame.position());
+    }
+
+    @Benchmark
+    public int textLookup() throws Throwable {
+        return (int) Hooks.TEXT_LOOKUP.invokeExact(textLine);
+    }
+
+    @Benchmark
+    public int binaryLookup() throws Throwable {
+        if (!frames.hasRemaining()) {
+            frames.rewind();
+            replies.clear();
+        }
+        boolean decoded = (boolean) Hooks.DECODE.invokeExact(frames, message);
+        Hooks.ENCODE_SERVER_PORT.invokeExact(replies, 17, 7005);
+        return decoded ? replies.position() : -1;
+    }
+
+    @Benchmark
+    public int estimateDuration() throws Throwable {
+        return (int) Hooks.ESTIMATE_REQUEST_TIME.invokeExact("VIDEO_STREAMING", "quality=hd 30s");
+    }
+
+    @Benchmark
+    public String serverBinaryRequest() throws Throwable {
+        serverFrame.reset();
+        return (String) Hooks.READ_BINARY_REQUEST.invokeExact((java.io.InputStream) serverFrame);
+    }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// LoadBalancer.selectServer against 1 to 1000 registered backends for every strategy. select
+// is one routing thread; contended runs three routing threads against one thread ingesting load
+// reports, the way join connections update loads while lookups are routed.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int backends;
+
+    @Param({"round-robin", "least-load", "least-load-indexed", "p2c", "least-work", "affinity"})
+    public String strategy;
+
+    private Object[] pool;
+    private String[] reports;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Hooks.configure(strategy);
+        pool = Hooks.register(backends, 20000);
+        SplittableRandom random = new SplittableRandom(42);
+        for (Object backend : pool) {
+            Hooks.UPDATE_LOAD.invokeExact(backend, random.nextInt(50));
+        }
+        reports = new String[64];
+        for (int i = 0; i < reports.length; i++) {
+            reports[i] = "load=" + random.nextInt(50);
+        }
+    }
+
+    // Per thread: filename keys for affinity, a random source for the report thread
+    @State(Scope.Thread)
+    public static class Picks {
+        long[] keys = new long[1024];
+        int next;
+        SplittableRandom random = new SplittableRandom();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = (long) Hooks.HASH.invokeExact("file-" + i + ".bin");
+            }
+        }
+
+        long key() {
+            return keys[next++ & (keys.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public Object select(Picks picks) throws Throwable {
+        return (Object) Hooks.SELECT_SERVER.invokeExact("FILE_TRANSFER", 5000L, picks.key());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public Object route(Picks picks) throws Throwable {
+        return (Object) Hooks.SELECT_SERVER.invokeExact("FILE_TRANSFER", 5000L, picks.key());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public boolean report(Picks picks) throws Throwable {
+        Object backend = pool[picks.random.nextInt(pool.length)];
+        return (boolean) Hooks.HANDLE_SERVER_UPDATE.invokeExact(backend, reports[picks.next++ & (reports.length - 1)]);
+    }
+}
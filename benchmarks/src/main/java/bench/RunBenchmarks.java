@@ -0,0 +1,43 @@
+package bench;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Entry point of benchmarks.jar: the usual JMH command line, except that the GC profiler
+// (allocation rate and bytes per operation) is on and results are written as JSON to
+// jmh-results/<timestamp>.json unless -prof, -rf or -rff say otherwise, so every run leaves a
+// file that can be compared with earlier ones.
+public class RunBenchmarks {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        if (cli.shouldList() || cli.shouldListWithParams() || cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+        if (cli.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        ResultFormatType format = cli.getResultFormat().orElse(ResultFormatType.JSON);
+        options.resultFormat(format);
+        if (!cli.getResult().hasValue()) {
+            new File("jmh-results").mkdirs();
+            String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            options.result("jmh-results/" + stamp + "." + format.name().toLowerCase());
+        }
+        new Runner(options.build()).run();
+    }
+}